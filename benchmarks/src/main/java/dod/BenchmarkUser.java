@@ -0,0 +1,28 @@
+package dod;
+
+import dod.game.GameLogic;
+
+/**
+ * A command line user which throws away its output, only counting it so the
+ * work of producing it is not optimised away
+ */
+class BenchmarkUser extends CommandLineUser {
+	private long outputLength = 0;
+
+	BenchmarkUser(GameLogic game) {
+		super(game);
+	}
+
+	@Override
+	public void run() {
+	}
+
+	@Override
+	protected void doOutputMessage(CharSequence message) {
+		this.outputLength += message.length();
+	}
+
+	long getOutputLength() {
+		return this.outputLength;
+	}
+}
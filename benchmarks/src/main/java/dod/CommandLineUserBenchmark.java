@@ -0,0 +1,88 @@
+package dod;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dod.game.BenchmarkMaps;
+import dod.game.GameLogic;
+
+/**
+ * Parsing, dispatching and carrying out a command line, as every connection
+ * does for every command. The user is the only player, so always has the
+ * turn, and ENDTURN hands it straight back to them. Before every command the
+ * player is put on a fresh tile of a map covered in gold, so MOVE and PICKUP
+ * succeed each time. Now and then a MOVE or PICKUP uses the last of the
+ * player's AP, and the new turn is measured along with it.
+ *
+ * SETPLAYERPOS with a bad argument and an unknown command measure the FAIL
+ * path instead.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandLineUserBenchmark {
+	private static final int MAP_SIZE = 256;
+
+	@Param({ "LOOK", "PICKUP", "MOVE E", "ENDTURN", "SETPLAYERPOS 1 x", "NOSUCHCOMMAND" })
+	String command;
+
+	private String mapFile;
+	private GameLogic game;
+	private BenchmarkUser user;
+	private int col;
+	private int row;
+
+	@Setup(Level.Trial)
+	public void writeMap() throws Exception {
+		this.mapFile = BenchmarkMaps.writeAllGold(MAP_SIZE);
+	}
+
+	@Setup(Level.Iteration)
+	public void startGame() throws Exception {
+		this.game = new GameLogic(this.mapFile);
+		this.user = new BenchmarkUser(this.game);
+		this.user.addPlayer();
+		this.col = 0;
+		this.row = 1;
+	}
+
+	/**
+	 * Puts the player on the next tile with gold on it, walking along the rows
+	 * inside the outer wall and leaving room to step east. Run before every
+	 * command, which is only worthwhile because they take much longer than
+	 * JMH's own timing of each call.
+	 */
+	@Setup(Level.Invocation)
+	public void nextTile() throws Exception {
+		if (++this.col == MAP_SIZE - 2) {
+			this.col = 1;
+			if (++this.row == MAP_SIZE - 1) {
+				// Every tile has been picked up, start again on a fresh map
+				startGame();
+				this.col = 1;
+			}
+		}
+		this.game.setPlayerPosition(this.col, this.row, this.user.playerID);
+	}
+
+	@Benchmark
+	public long processCommand() {
+		this.user.processCommand(this.command);
+		return this.user.getOutputLength();
+	}
+}
@@ -0,0 +1,74 @@
+package dod;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dod.game.BenchmarkMaps;
+import dod.game.GameLogic;
+
+/**
+ * Cleaning up the text of SHOUT and HELLO. A shout is also sent to every
+ * player, so it is measured with different numbers of players. HELLO is
+ * refused once the name is set, but only after the name has been cleaned up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SanitiseBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	int length;
+
+	@Param({ "1", "16" })
+	int players;
+
+	private BenchmarkUser user;
+	private String shout;
+	private String hello;
+
+	@Setup
+	public void setUp() throws Exception {
+		final GameLogic game = new GameLogic(BenchmarkMaps.write(64));
+		for (int i = 1; i < this.players; i++) {
+			new BenchmarkUser(game).addPlayer();
+		}
+		this.user = new BenchmarkUser(game);
+		this.user.addPlayer();
+		this.user.processCommand("HELLO benchmark");
+
+		// Mixed case letters and punctuation, some of which is removed
+		final StringBuilder text = new StringBuilder(this.length);
+		final String sample = "Hello there, <Player> #3! ";
+		while (text.length() < this.length) {
+			text.append(sample.charAt(text.length() % sample.length()));
+		}
+		this.shout = "SHOUT " + text;
+		this.hello = "HELLO " + text;
+	}
+
+	@Benchmark
+	public long shout() {
+		this.user.processCommand(this.shout);
+		return this.user.getOutputLength();
+	}
+
+	@Benchmark
+	public long hello() {
+		this.user.processCommand(this.hello);
+		return this.user.getOutputLength();
+	}
+}
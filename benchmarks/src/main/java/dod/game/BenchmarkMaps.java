@@ -0,0 +1,123 @@
+package dod.game;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Generates square maps for the benchmarks, so they can be run at sizes the
+ * bundled maps don't come in. The maps are random, but from a fixed seed, so
+ * every run measures the same maps.
+ */
+public final class BenchmarkMaps {
+	private static final long SEED = 42;
+
+	private BenchmarkMaps() {
+	}
+
+	/**
+	 * Writes a map of mostly floor, with some walls and items and an exit, in
+	 * the ASCII map format
+	 *
+	 * @param size
+	 *            the width and height of the map, including the outer wall
+	 * @return the name of the map file, deleted when the JVM exits
+	 */
+	public static String write(int size) throws IOException {
+		final Random random = new Random(SEED);
+		final String items = "GGGGGHALS";
+
+		return write(size, (col, row) -> {
+			if ((col == 1) && (row == 1)) {
+				return 'E';
+			}
+			final int roll = random.nextInt(100);
+			if (roll < 6) {
+				return '#';
+			}
+			if (roll < 15) {
+				return items.charAt(random.nextInt(items.length()));
+			}
+			return '.';
+		});
+	}
+
+	/**
+	 * Writes a map with gold on every tile inside the outer wall, so a player
+	 * can pick up gold wherever they are put
+	 *
+	 * @param size
+	 *            the width and height of the map, including the outer wall
+	 * @return the name of the map file, deleted when the JVM exits
+	 */
+	public static String writeAllGold(int size) throws IOException {
+		return write(size, (col, row) -> 'G');
+	}
+
+	/**
+	 * Chooses the character of a tile inside the outer wall
+	 */
+	private interface TileChooser {
+		char choose(int col, int row);
+	}
+
+	private static String write(int size, TileChooser chooser) throws IOException {
+		final File file = File.createTempFile("dod-benchmark-" + size + "-", ".map");
+		file.deleteOnExit();
+
+		try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+			out.println("name Benchmark " + size);
+			out.println("win 1");
+			final StringBuilder line = new StringBuilder(size);
+			for (int row = 0; row < size; row++) {
+				line.setLength(0);
+				for (int col = 0; col < size; col++) {
+					final boolean edge = (row == 0) || (col == 0) || (row == size - 1) || (col == size - 1);
+					line.append(edge ? '#' : chooser.choose(col, row));
+				}
+				out.println(line);
+			}
+		}
+		return file.getPath();
+	}
+
+	/**
+	 * Puts the players on pairs of free floor tiles side by side, so each can
+	 * step east and back west without meeting a wall or another player
+	 *
+	 * @param game
+	 *            the game the players have been added to
+	 * @return the column and row of each player's western tile
+	 */
+	static Location[] placePlayers(GameLogic game, int players) throws CommandException {
+		final Random random = new Random(SEED);
+		final Map map = game.map;
+		final boolean reserved[] = new boolean[map.getMapWidth() * map.getMapHeight()];
+		final Location locations[] = new Location[players];
+
+		for (int playerID = 0; playerID < players; playerID++) {
+			while (true) {
+				final int col = 1 + random.nextInt(map.getMapWidth() - 3);
+				final int row = 1 + random.nextInt(map.getMapHeight() - 2);
+				final int cell = row * map.getMapWidth() + col;
+				if ((map.toChar(col, row) == '.') && (map.toChar(col + 1, row) == '.')
+						&& !reserved[cell] && !reserved[cell + 1]
+						&& ((map.getOccupant(col, row) == Map.NO_OCCUPANT) || (map.getOccupant(col, row) == playerID))
+						&& (map.getOccupant(col + 1, row) == Map.NO_OCCUPANT)) {
+					reserved[cell] = true;
+					reserved[cell + 1] = true;
+					locations[playerID] = new Location(col, row);
+					break;
+				}
+			}
+		}
+
+		// None of the chosen tiles had anyone else on them to start with, so
+		// the players can be moved in any order
+		for (int playerID = 0; playerID < players; playerID++) {
+			game.setPlayerPosition(locations[playerID].getCol(), locations[playerID].getRow(), playerID);
+		}
+		return locations;
+	}
+}
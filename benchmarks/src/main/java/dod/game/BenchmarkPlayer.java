@@ -0,0 +1,29 @@
+package dod.game;
+
+/**
+ * A player listener which ignores everything the game tells it, for
+ * benchmarks to add players with and override what they need
+ */
+public class BenchmarkPlayer implements PlayerListener {
+
+	public void sendMessage(String message) {
+	}
+
+	public void startTurn() {
+	}
+
+	public void endTurn() {
+	}
+
+	public void win() {
+	}
+
+	public void hpChange(int value) {
+	}
+
+	public void treasureChange(int value) {
+	}
+
+	public void change(ViewDelta delta) {
+	}
+}
@@ -0,0 +1,152 @@
+package dod.game;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The commands played every turn, LOOK and MOVE, on generated maps of
+ * different sizes with different numbers of players. Each player stands on
+ * one of a pair of floor tiles, and moves steps them east and back west, so
+ * the game can be played for as long as the benchmark runs.
+ *
+ * A LOOK is answered from the player's LookCache until something they can see
+ * changes, so LOOKs are measured both from the cache and rendered afresh.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameLogicBenchmark {
+
+	@Param({ "64", "256", "1024" })
+	int mapSize;
+
+	@Param({ "1", "16", "256" })
+	int players;
+
+	private GameLogic game;
+
+	// The player whose turn it is, kept up to date by the players' listeners
+	private int currentPlayer;
+
+	// The western tile of each player's pair, and whether they are on it
+	private Location westTiles[];
+	private boolean onWestTile[];
+
+	private int nextLooker = 0;
+
+	private final StringBuilder lookReply = new StringBuilder();
+
+	// Counts the view changes sent, so they are not optimised away
+	private long changes = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.game = new GameLogic(BenchmarkMaps.write(this.mapSize));
+		for (int i = 0; i < this.players; i++) {
+			final int playerID = i;
+			this.game.addPlayer(new BenchmarkPlayer() {
+				@Override
+				public void startTurn() {
+					GameLogicBenchmark.this.currentPlayer = playerID;
+				}
+
+				@Override
+				public void change(ViewDelta delta) {
+					GameLogicBenchmark.this.changes += delta.size();
+				}
+			});
+		}
+		this.westTiles = BenchmarkMaps.placePlayers(this.game, this.players);
+		this.onWestTile = new boolean[this.players];
+		Arrays.fill(this.onWestTile, true);
+	}
+
+	/**
+	 * Each player in turn LOOKs without anything having changed, so after the
+	 * first round every reply comes from the player's LookCache. The GUI
+	 * client LOOKs after every CHANGE and button press, many of which change
+	 * nothing the player can see.
+	 */
+	@Benchmark
+	public int clientLookCached() {
+		final int playerID = nextLooker();
+
+		this.lookReply.setLength(0);
+		this.game.clientLook(playerID, this.lookReply);
+		return this.lookReply.length();
+	}
+
+	/**
+	 * Each player in turn LOOKs after the part of the map they can see has
+	 * changed, so every reply is rendered
+	 */
+	@Benchmark
+	public int clientLookUncached() {
+		final int playerID = nextLooker();
+		final Location tile = this.westTiles[playerID];
+		this.game.map.regionChanged(tile.getCol() + (this.onWestTile[playerID] ? 0 : 1), tile.getRow());
+
+		this.lookReply.setLength(0);
+		this.game.clientLook(playerID, this.lookReply);
+		return this.lookReply.length();
+	}
+
+	/**
+	 * The current player moves, and the players who can see them are told
+	 */
+	@Benchmark
+	public long clientMove() throws CommandException {
+		move();
+		return this.changes;
+	}
+
+	/**
+	 * The current player moves and then LOOKs, as the GUI client does
+	 */
+	@Benchmark
+	public int clientMoveThenLook() throws CommandException {
+		final int playerID = move();
+
+		this.lookReply.setLength(0);
+		this.game.clientLook(playerID, this.lookReply);
+		return this.lookReply.length();
+	}
+
+	/**
+	 * @return the player who LOOKs next, every player LOOKs in turn
+	 */
+	private int nextLooker() {
+		final int playerID = this.nextLooker;
+		this.nextLooker = (playerID + 1 == this.players) ? 0 : playerID + 1;
+		return playerID;
+	}
+
+	/**
+	 * Steps the current player to the other tile of their pair, which may end
+	 * their turn
+	 *
+	 * @return the player who moved
+	 */
+	private int move() throws CommandException {
+		final int playerID = this.currentPlayer;
+		final boolean west = this.onWestTile[playerID];
+		this.game.clientMove(west ? CompassDirection.EAST : CompassDirection.WEST, playerID);
+		this.onWestTile[playerID] = !west;
+		return playerID;
+	}
+}
@@ -0,0 +1,53 @@
+package dod.game;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a map from an ASCII or binary map file, which a server does for
+ * every game it hosts
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+	@Param({ "64", "256", "1024", "2048" })
+	int mapSize;
+
+	@Param({ "text", "binary" })
+	String format;
+
+	private String mapFile;
+
+	@Setup
+	public void writeMap() throws Exception {
+		this.mapFile = BenchmarkMaps.write(this.mapSize);
+		if (this.format.equals("binary")) {
+			final String binaryFile = this.mapFile + ".dodm";
+			Map.load(this.mapFile).writeBinary(binaryFile);
+			new File(binaryFile).deleteOnExit();
+			this.mapFile = binaryFile;
+		}
+	}
+
+	@Benchmark
+	public Map load() throws Exception {
+		return Map.load(this.mapFile);
+	}
+}
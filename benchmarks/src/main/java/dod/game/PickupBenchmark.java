@@ -0,0 +1,70 @@
+package dod.game;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PICKUP, which takes the item off the map, so it can only be repeated while
+ * there are items left. Every iteration starts a fresh game on a map covered
+ * in gold, and times a batch of pickups, each after putting the player on the
+ * next tile with SETPLAYERPOS. The score is the time for the whole batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = PickupBenchmark.PICKUPS)
+@Measurement(iterations = 10, batchSize = PickupBenchmark.PICKUPS)
+@Fork(1)
+public class PickupBenchmark {
+	static final int PICKUPS = 10000;
+
+	// Big enough to have a tile of gold for every pickup in the batch
+	@Param({ "128", "1024" })
+	int mapSize;
+
+	private String mapFile;
+	private GameLogic game;
+	private int col;
+	private int row;
+
+	@Setup(Level.Trial)
+	public void writeMap() throws Exception {
+		if ((this.mapSize - 2) * (this.mapSize - 2) < PICKUPS) {
+			throw new IllegalArgumentException("a " + this.mapSize + " map has too little gold for " + PICKUPS
+					+ " pickups");
+		}
+		this.mapFile = BenchmarkMaps.writeAllGold(this.mapSize);
+	}
+
+	@Setup(Level.Iteration)
+	public void startGame() throws Exception {
+		this.game = new GameLogic(this.mapFile);
+		this.game.addPlayer(new BenchmarkPlayer());
+		this.col = 0;
+		this.row = 1;
+	}
+
+	@Benchmark
+	public int clientPickup() throws CommandException {
+		// Walk along the rows inside the outer wall
+		if (++this.col == this.mapSize - 1) {
+			this.col = 1;
+			this.row++;
+		}
+		this.game.setPlayerPosition(this.col, this.row, 0);
+		this.game.clientPickup(0);
+		return this.col;
+	}
+}
@@ -0,0 +1,916 @@
+package dod;
+
+import dod.game.ViewDelta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact binary form of the text protocol, which a client can switch to by
+ * sending BINARY. Once the server has replied SUCCESS, both sides send frames
+ * instead of lines.
+ *
+ * A frame is the length of the rest of the frame as a varint, an opcode byte
+ * saying which message it is, and the message's arguments. Text arguments are
+ * sent as ASCII, numbers as zig-zag varints, LOOKREPLY grids as the width of
+ * the grid followed by one 4 bit code per tile, and LOOKDELTA as the number of
+ * tiles followed by the column, row and code of each. A message without an
+ * opcode of its own, or that does not fit its usual form, is sent as the
+ * opcode TEXT followed by the text of the message.
+ *
+ * Frames are translated to and from the text messages, so everything that
+ * speaks the text protocol can use binary connections unchanged. The server
+ * need not: it looks up the commands it receives in its CommandRegistry
+ * straight from their opcodes, and encodes LOOKREPLY and LOOKDELTA from the
+ * tiles rather than from their text. An instance translates one direction of
+ * one connection, and is not thread-safe.
+ */
+final class BinaryProtocol {
+
+	// The text command switching a connection to binary frames
+	static final String SWITCH_COMMAND = "BINARY";
+
+	// Anything longer is treated as a broken connection
+	static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	// The forms the arguments of a message can take
+	private static final int NO_ARGUMENT = 0;
+	private static final int TEXT_ARGUMENT = 1;
+	private static final int NUMBER_ARGUMENTS = 2;
+	private static final int LOOK_ARGUMENT = 3;
+	private static final int DELTA_ARGUMENT = 4;
+
+	// Opcode 0 in both directions carries a message as plain text
+	private static final int TEXT = 0;
+
+	// Client to server messages, the opcode is the index
+	private static final String COMMANDS[] = { null, "HELLO", "LOOK", "PICKUP", "MOVE", "ATTACK",
+			"ENDTURN", "SHOUT", "SETPLAYERPOS", "DELTAS" };
+	private static final int COMMAND_ARGUMENTS[] = { TEXT_ARGUMENT, TEXT_ARGUMENT, NO_ARGUMENT,
+			NO_ARGUMENT, TEXT_ARGUMENT, TEXT_ARGUMENT, NO_ARGUMENT, TEXT_ARGUMENT, NUMBER_ARGUMENTS,
+			NO_ARGUMENT };
+
+	// Server to client messages, the opcode is the index
+	private static final String MESSAGES[] = { null, "GOLD", "SUCCESS", "FAIL", "HELLO", "MESSAGE",
+			"STARTTURN", "ENDTURN", "WIN", "HITMOD", "TREASUREMOD", "CHANGE", "LOOKREPLY",
+			"LOOKDELTA" };
+	private static final int LOOKREPLY = 12;
+	private static final int LOOKDELTA = 13;
+	private static final int MESSAGE_ARGUMENTS[] = { TEXT_ARGUMENT, NUMBER_ARGUMENTS, NO_ARGUMENT,
+			TEXT_ARGUMENT, TEXT_ARGUMENT, TEXT_ARGUMENT, NO_ARGUMENT, NO_ARGUMENT, NO_ARGUMENT,
+			NUMBER_ARGUMENTS, NUMBER_ARGUMENTS, NO_ARGUMENT, LOOK_ARGUMENT, DELTA_ARGUMENT };
+
+	// The tiles of a LOOKREPLY, the code is the index
+	private static final String TILES = "X#.EGAHLSP";
+	private static final byte TILE_CODES[] = new byte[128];
+
+	static {
+		Arrays.fill(TILE_CODES, (byte) -1);
+		for (int code = 0; code < TILES.length(); code++) {
+			TILE_CODES[TILES.charAt(code)] = (byte) code;
+		}
+	}
+
+	// The messages this side sends and receives
+	private final String sent[];
+	private final int sentArguments[];
+	private final String received[];
+	private final int receivedArguments[];
+
+	// Looks up the commands received by the server, indexed by opcode, or
+	// null on the client's side
+	private final CommandRegistry commands;
+	private final int commandOpcodes[];
+
+	// The last command decoded, see decodeCommand
+	private int commandOpcode;
+	private String commandLine;
+	private int commandArgStart;
+	private final StringBuilder decoded = new StringBuilder();
+
+	// The frame being built, the length is filled in before the payload once
+	// it is known
+	private static final int HEADER_SPACE = 5;
+	private byte frame[] = new byte[256];
+	private int frameStart;
+	private int frameEnd;
+
+	private BinaryProtocol(String sent[], int sentArguments[], String received[],
+			int receivedArguments[], CommandRegistry commands) {
+		this.sent = sent;
+		this.sentArguments = sentArguments;
+		this.received = received;
+		this.receivedArguments = receivedArguments;
+		this.commands = commands;
+		if (commands == null) {
+			this.commandOpcodes = null;
+			return;
+		}
+
+		// Commands the registry does not have are looked up by name, and fail
+		this.commandOpcodes = new int[received.length];
+		this.commandOpcodes[TEXT] = -1;
+		for (int opcode = 1; opcode < received.length; opcode++) {
+			this.commandOpcodes[opcode] = commands.opcodeOf(received[opcode], 0,
+					received[opcode].length());
+		}
+	}
+
+	/**
+	 * @param commands
+	 *            the commands of the user the connection is for, which the
+	 *            commands received are looked up in
+	 * @return a translator for the server's side of a connection
+	 */
+	static BinaryProtocol forServer(CommandRegistry commands) {
+		return new BinaryProtocol(MESSAGES, MESSAGE_ARGUMENTS, COMMANDS, COMMAND_ARGUMENTS,
+				commands);
+	}
+
+	/**
+	 * @return a translator for the client's side of a connection
+	 */
+	static BinaryProtocol forClient() {
+		return new BinaryProtocol(COMMANDS, COMMAND_ARGUMENTS, MESSAGES, MESSAGE_ARGUMENTS, null);
+	}
+
+	/**
+	 * @return true if the line is the command switching to binary frames
+	 */
+	static boolean isSwitchCommand(String line) {
+		return line.equalsIgnoreCase(SWITCH_COMMAND);
+	}
+
+	/**
+	 * Turns a text message into a frame, which stays available through
+	 * writeTo and frameLength until the next message is encoded
+	 *
+	 * @param message
+	 *            the text message, without a trailing line separator
+	 */
+	void encode(CharSequence message) {
+		int verbEnd = 0;
+		while ((verbEnd < message.length()) && (message.charAt(verbEnd) != ' ')
+				&& (message.charAt(verbEnd) != '\r') && (message.charAt(verbEnd) != '\n')) {
+			verbEnd++;
+		}
+
+		for (int opcode = 1; opcode < this.sent.length; opcode++) {
+			if (regionEquals(message, verbEnd, this.sent[opcode])
+					&& encodeArguments(opcode, message, verbEnd)) {
+				finishFrame();
+				return;
+			}
+		}
+
+		// Anything else goes as text
+		this.frameEnd = HEADER_SPACE;
+		put(TEXT);
+		putAscii(message, 0, message.length());
+		finishFrame();
+	}
+
+	/**
+	 * Turns the tiles of a LOOKREPLY into a frame, without rendering them as
+	 * text first. Only for the server's side of a connection.
+	 *
+	 * @param tiles
+	 *            the tiles of the square view, row by row, each the character
+	 *            the text of the reply shows
+	 * @return false if a tile has no binary form, nothing is encoded
+	 */
+	boolean encodeLook(char tiles[]) {
+		final int width = (int) Math.sqrt(tiles.length);
+		if (width * width != tiles.length) {
+			return false;
+		}
+		this.frameEnd = HEADER_SPACE;
+		put(LOOKREPLY);
+		putVarint(width);
+
+		final int packedStart = this.frameEnd;
+		final int packedLength = (tiles.length + 1) / 2;
+		ensureCapacity(packedStart + packedLength);
+		Arrays.fill(this.frame, packedStart, packedStart + packedLength, (byte) 0);
+		for (int tile = 0; tile < tiles.length; tile++) {
+			final int code = tileCode(tiles[tile]);
+			if (code < 0) {
+				return false;
+			}
+			this.frame[packedStart + tile / 2] |= (tile % 2 == 0) ? code : code << 4;
+		}
+		this.frameEnd = packedStart + packedLength;
+		finishFrame();
+		return true;
+	}
+
+	/**
+	 * Turns the changed tiles of a LOOKDELTA into a frame, without rendering
+	 * them as text first. Only for the server's side of a connection.
+	 *
+	 * @return false if a tile has no binary form, nothing is encoded
+	 */
+	boolean encodeDelta(ViewDelta delta) {
+		this.frameEnd = HEADER_SPACE;
+		put(LOOKDELTA);
+		putVarint(delta.size());
+		for (int tile = 0; tile < delta.size(); tile++) {
+			final int code = tileCode(delta.getContent(tile));
+			if (code < 0) {
+				return false;
+			}
+			putSignedVarint(delta.getColOffset(tile));
+			putSignedVarint(delta.getRowOffset(tile));
+			putVarint(code);
+		}
+		finishFrame();
+		return true;
+	}
+
+	/**
+	 * @return the length of the last encoded frame
+	 */
+	int frameLength() {
+		return this.frameEnd - this.frameStart;
+	}
+
+	/**
+	 * Writes the last encoded frame to the stream
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		out.write(this.frame, this.frameStart, frameLength());
+	}
+
+	/**
+	 * Puts the last encoded frame in the buffer, which must have room for it
+	 */
+	void writeTo(ByteBuffer out) {
+		out.put(this.frame, this.frameStart, frameLength());
+	}
+
+	/**
+	 * Works out how much of a buffer the next frame takes up
+	 *
+	 * @return the length of the frame including its header, or 0 if the whole
+	 *         frame has not arrived yet
+	 * @throws ProtocolException
+	 *             if the frame is too long
+	 */
+	static int frameLength(byte buffer[], int start, int limit) throws ProtocolException {
+		int length = 0;
+		for (int i = start, shift = 0; i < limit; i++, shift += 7) {
+			length |= (buffer[i] & 0x7f) << shift;
+			if ((buffer[i] & 0x80) == 0) {
+				if ((length <= 0) || (length > MAX_FRAME_LENGTH)) {
+					throw new ProtocolException("invalid frame length " + length);
+				}
+				final int frameLength = i + 1 - start + length;
+				return (start + frameLength <= limit) ? frameLength : 0;
+			}
+			if (shift > 14) {
+				throw new ProtocolException("invalid frame length");
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Turns a received frame back into its text message
+	 *
+	 * @param buffer
+	 *            holds the whole frame, including its header
+	 * @param out
+	 *            the text is appended to this, without a trailing line
+	 *            separator
+	 * @throws ProtocolException
+	 *             if the frame is not a valid message
+	 */
+	void decode(byte buffer[], int start, int frameLength, StringBuilder out)
+			throws ProtocolException {
+		int position = start;
+		while ((buffer[position++] & 0x80) != 0) {
+			// Skip the length
+		}
+		final int end = start + frameLength;
+		final int opcode = buffer[position++] & 0xff;
+
+		if (opcode >= this.received.length) {
+			throw new ProtocolException("invalid opcode " + opcode);
+		}
+		if (opcode == TEXT) {
+			appendAscii(buffer, position, end, out);
+			return;
+		}
+
+		out.append(this.received[opcode]);
+		final Decoder decoder = new Decoder(buffer, position, end);
+		switch (this.receivedArguments[opcode]) {
+			case TEXT_ARGUMENT :
+				out.append(' ');
+				appendAscii(buffer, position, end, out);
+				return;
+
+			case NUMBER_ARGUMENTS :
+				while (decoder.hasMore()) {
+					out.append(' ').append(decoder.signedVarint());
+				}
+				return;
+
+			case LOOK_ARGUMENT :
+				final int width = decoder.varint();
+				for (int tile = 0; tile < width * width; tile++) {
+					if (tile % width == 0) {
+						out.append(LINE_SEPARATOR);
+					}
+					out.append(tileFor(decoder.nibble(tile)));
+				}
+				out.append(LINE_SEPARATOR);
+				break;
+
+			case DELTA_ARGUMENT :
+				final int tiles = decoder.varint();
+				for (int tile = 0; tile < tiles; tile++) {
+					out.append(' ').append(decoder.signedVarint()).append(',')
+							.append(decoder.signedVarint()).append(',')
+							.append(tileFor(decoder.varint()));
+				}
+				break;
+
+			default :
+				break;
+		}
+		if (decoder.hasMore()) {
+			throw new ProtocolException("unexpected data after " + this.received[opcode]);
+		}
+	}
+
+	/**
+	 * Looks up a received command frame in the registry the translator was
+	 * created with, without turning it back into text. The command stays
+	 * available through commandOpcode, commandLine and commandArgStart until
+	 * the next frame is decoded. Only for the server's side of a connection.
+	 *
+	 * @param buffer
+	 *            holds the whole frame, including its header
+	 * @throws ProtocolException
+	 *             if the frame is not a valid command
+	 */
+	void decodeCommand(byte buffer[], int start, int frameLength) throws ProtocolException {
+		int position = start;
+		while ((buffer[position++] & 0x80) != 0) {
+			// Skip the length
+		}
+		final int end = start + frameLength;
+		final int opcode = buffer[position++] & 0xff;
+
+		if (opcode >= this.received.length) {
+			throw new ProtocolException("invalid opcode " + opcode);
+		}
+		final int registered = this.commandOpcodes[opcode];
+		if (registered < 0) {
+			// Text, or a command the user does not have, is looked up by name
+			// like a line of text
+			this.decoded.setLength(0);
+			decode(buffer, start, frameLength, this.decoded);
+			final String line = this.decoded.toString();
+			final int commandEnd = line.indexOf(' ');
+			this.commandOpcode = this.commands.opcodeOf(line, 0,
+					(commandEnd < 0) ? line.length() : commandEnd);
+			this.commandLine = line;
+			this.commandArgStart = (commandEnd < 0) ? -1 : commandEnd + 1;
+			return;
+		}
+
+		// The line is just the argument, which is all a command handler reads
+		this.commandOpcode = registered;
+		this.decoded.setLength(0);
+		switch (this.receivedArguments[opcode]) {
+			case NO_ARGUMENT :
+				if (position < end) {
+					throw new ProtocolException("unexpected data after " + this.received[opcode]);
+				}
+				break;
+
+			case TEXT_ARGUMENT :
+				appendAscii(buffer, position, end, this.decoded);
+				this.commandLine = this.decoded.toString();
+				this.commandArgStart = 0;
+				return;
+
+			case NUMBER_ARGUMENTS :
+				final Decoder decoder = new Decoder(buffer, position, end);
+				while (decoder.hasMore()) {
+					if (this.decoded.length() > 0) {
+						this.decoded.append(' ');
+					}
+					this.decoded.append(decoder.signedVarint());
+				}
+				break;
+
+			default :
+				throw new ProtocolException("invalid opcode " + opcode);
+		}
+		if (this.decoded.length() == 0) {
+			this.commandLine = this.commands.name(registered);
+			this.commandArgStart = -1;
+		} else {
+			this.commandLine = this.decoded.toString();
+			this.commandArgStart = 0;
+		}
+	}
+
+	/**
+	 * @return the opcode of the last command decoded in the registry, or -1
+	 *         if it has no such command
+	 */
+	int commandOpcode() {
+		return this.commandOpcode;
+	}
+
+	/**
+	 * @return the line holding the argument of the last command decoded, the
+	 *         whole line if it was sent as text
+	 */
+	String commandLine() {
+		return this.commandLine;
+	}
+
+	/**
+	 * @return the index of the argument in the line, or -1 if it has none
+	 */
+	int commandArgStart() {
+		return this.commandArgStart;
+	}
+
+	/**
+	 * Reads one frame from a stream and turns it back into its text message
+	 *
+	 * @return false at the end of the stream
+	 */
+	boolean readFrom(InputStream in, StringBuilder out) throws IOException {
+		final int frameLength = readFrame(in);
+		if (frameLength == 0) {
+			return false;
+		}
+		decode(this.frame, 0, frameLength, out);
+		return true;
+	}
+
+	/**
+	 * Reads one command frame from a stream and looks it up, see
+	 * decodeCommand
+	 *
+	 * @return false at the end of the stream
+	 */
+	boolean readCommandFrom(InputStream in) throws IOException {
+		final int frameLength = readFrame(in);
+		if (frameLength == 0) {
+			return false;
+		}
+		decodeCommand(this.frame, 0, frameLength);
+		return true;
+	}
+
+	/**
+	 * Reads one frame from a stream into the frame buffer
+	 *
+	 * @return the length of the frame including its header, or 0 at the end
+	 *         of the stream
+	 */
+	private int readFrame(InputStream in) throws IOException {
+		int length = 0;
+		int headerLength = 0;
+		for (int shift = 0;; shift += 7) {
+			final int b = in.read();
+			if (b == -1) {
+				if (headerLength == 0) {
+					return 0;
+				}
+				throw new ProtocolException("connection closed mid frame");
+			}
+			this.frame[headerLength++] = (byte) b;
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			if (shift > 14) {
+				throw new ProtocolException("invalid frame length");
+			}
+		}
+		if ((length <= 0) || (length > MAX_FRAME_LENGTH)) {
+			throw new ProtocolException("invalid frame length " + length);
+		}
+
+		ensureCapacity(headerLength + length);
+		int read = 0;
+		while (read < length) {
+			final int count = in.read(this.frame, headerLength + read, length - read);
+			if (count == -1) {
+				throw new ProtocolException("connection closed mid frame");
+			}
+			read += count;
+		}
+		return headerLength + length;
+	}
+
+	/**
+	 * Writes the arguments of the message in their binary form
+	 *
+	 * @return false if the arguments are not in the form expected
+	 */
+	private boolean encodeArguments(int opcode, CharSequence message, int verbEnd) {
+		this.frameEnd = HEADER_SPACE;
+		put(opcode);
+
+		final int length = message.length();
+		switch (this.sentArguments[opcode]) {
+			case NO_ARGUMENT :
+				return (verbEnd == length);
+
+			case TEXT_ARGUMENT :
+				if ((verbEnd == length) || (message.charAt(verbEnd) != ' ')) {
+					return false;
+				}
+				putAscii(message, verbEnd + 1, length);
+				return true;
+
+			case NUMBER_ARGUMENTS :
+				int position = verbEnd;
+				while (position < length) {
+					if ((message.charAt(position) != ' ') || (position + 1 == length)) {
+						return false;
+					}
+					final int numberEnd = indexOf(message, ' ', position + 1);
+					final long number = parseNumber(message, position + 1, numberEnd);
+					if (number == Long.MIN_VALUE) {
+						return false;
+					}
+					putSignedVarint((int) number);
+					position = numberEnd;
+				}
+				return true;
+
+			case LOOK_ARGUMENT :
+				return encodeLook(message, verbEnd);
+
+			case DELTA_ARGUMENT :
+				return encodeDelta(message, verbEnd);
+
+			default :
+				return false;
+		}
+	}
+
+	/**
+	 * Packs the rows of a LOOKREPLY two tiles to a byte
+	 */
+	private boolean encodeLook(CharSequence message, int verbEnd) {
+		// Count the tiles to work out the width of the grid
+		int tiles = 0;
+		for (int i = verbEnd; i < message.length(); i++) {
+			final char c = message.charAt(i);
+			if ((c != '\r') && (c != '\n')) {
+				tiles++;
+			}
+		}
+		final int width = (int) Math.round(Math.sqrt(tiles));
+		if (width * width != tiles) {
+			return false;
+		}
+		putVarint(width);
+
+		final int packedStart = this.frameEnd;
+		ensureCapacity(packedStart + (tiles + 1) / 2);
+		Arrays.fill(this.frame, packedStart, packedStart + (tiles + 1) / 2, (byte) 0);
+
+		int tile = 0;
+		for (int i = verbEnd; i < message.length(); i++) {
+			final char c = message.charAt(i);
+			if ((c == '\r') || (c == '\n')) {
+				continue;
+			}
+			final int code = tileCode(c);
+			if (code < 0) {
+				return false;
+			}
+			this.frame[packedStart + tile / 2] |= (tile % 2 == 0) ? code : code << 4;
+			tile++;
+		}
+		this.frameEnd = packedStart + (tiles + 1) / 2;
+		return true;
+	}
+
+	/**
+	 * Writes the tiles of a LOOKDELTA, each "col,row,tile"
+	 */
+	private boolean encodeDelta(CharSequence message, int verbEnd) {
+		int tiles = 0;
+		for (int i = verbEnd; i < message.length(); i++) {
+			if (message.charAt(i) == ' ') {
+				tiles++;
+			}
+		}
+		putVarint(tiles);
+
+		int position = verbEnd;
+		for (int tile = 0; tile < tiles; tile++) {
+			// Each tile is preceded by a space
+			final int colEnd = indexOf(message, ',', position + 1);
+			final int rowEnd = indexOf(message, ',', colEnd + 1);
+			final long col = parseNumber(message, position + 1, colEnd);
+			final long row = (colEnd < message.length()) ? parseNumber(message, colEnd + 1, rowEnd)
+					: Long.MIN_VALUE;
+			if ((col == Long.MIN_VALUE) || (row == Long.MIN_VALUE)
+					|| (rowEnd + 2 > message.length())) {
+				return false;
+			}
+			final char c = message.charAt(rowEnd + 1);
+			final int code = tileCode(c);
+			if (code < 0) {
+				return false;
+			}
+			putSignedVarint((int) col);
+			putSignedVarint((int) row);
+			putVarint(code);
+
+			position = rowEnd + 2;
+			if ((position < message.length()) && (message.charAt(position) != ' ')) {
+				return false;
+			}
+		}
+		return (position == message.length());
+	}
+
+	/**
+	 * Writes the length of the frame in front of it
+	 */
+	private void finishFrame() {
+		int length = this.frameEnd - HEADER_SPACE;
+		int headerLength = 1;
+		for (int rest = length >>> 7; rest != 0; rest >>>= 7) {
+			headerLength++;
+		}
+
+		this.frameStart = HEADER_SPACE - headerLength;
+		for (int i = this.frameStart; i < HEADER_SPACE; i++) {
+			this.frame[i] = (byte) ((length & 0x7f) | ((i < HEADER_SPACE - 1) ? 0x80 : 0));
+			length >>>= 7;
+		}
+	}
+
+	private void put(int b) {
+		ensureCapacity(this.frameEnd + 1);
+		this.frame[this.frameEnd++] = (byte) b;
+	}
+
+	private void putVarint(int value) {
+		while ((value & ~0x7f) != 0) {
+			put((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		put(value);
+	}
+
+	private void putSignedVarint(int value) {
+		// Zig-zag encoding keeps small negative numbers small
+		putVarint((value << 1) ^ (value >> 31));
+	}
+
+	private void putAscii(CharSequence text, int start, int end) {
+		ensureCapacity(this.frameEnd + end - start);
+		for (int i = start; i < end; i++) {
+			final char c = text.charAt(i);
+			this.frame[this.frameEnd++] = (byte) ((c < 128) ? c : '?');
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > this.frame.length) {
+			this.frame = Arrays.copyOf(this.frame,
+					Math.max(capacity, this.frame.length * 2));
+		}
+	}
+
+	private static boolean regionEquals(CharSequence message, int length, String verb) {
+		if (length != verb.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (message.charAt(i) != verb.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(CharSequence text, char c, int from) {
+		for (int i = from; i < text.length(); i++) {
+			if (text.charAt(i) == c) {
+				return i;
+			}
+		}
+		return text.length();
+	}
+
+	/**
+	 * @return the number, or Long.MIN_VALUE if the text is not an int
+	 */
+	private static long parseNumber(CharSequence text, int start, int end) {
+		boolean negative = false;
+		if ((start < end) && (text.charAt(start) == '-')) {
+			negative = true;
+			start++;
+		}
+		if ((start == end) || (end - start > 10)) {
+			return Long.MIN_VALUE;
+		}
+
+		long number = 0;
+		for (int i = start; i < end; i++) {
+			final char c = text.charAt(i);
+			if ((c < '0') || (c > '9')) {
+				return Long.MIN_VALUE;
+			}
+			number = number * 10 + (c - '0');
+		}
+		number = negative ? -number : number;
+		return ((number < Integer.MIN_VALUE) || (number > Integer.MAX_VALUE)) ? Long.MIN_VALUE
+				: number;
+	}
+
+	/**
+	 * @return the binary code of the tile, or -1 if it has none
+	 */
+	private static int tileCode(char c) {
+		return (c < 128) ? TILE_CODES[c] : -1;
+	}
+
+	private static char tileFor(int code) throws ProtocolException {
+		if (code >= TILES.length()) {
+			throw new ProtocolException("invalid tile " + code);
+		}
+		return TILES.charAt(code);
+	}
+
+	private static void appendAscii(byte buffer[], int start, int end, StringBuilder out) {
+		for (int i = start; i < end; i++) {
+			out.append((char) (buffer[i] & 0x7f));
+		}
+	}
+
+	/**
+	 * Reads the arguments of a frame
+	 */
+	private static final class Decoder {
+		private final byte buffer[];
+		private int position;
+		private final int end;
+
+		// Where the packed tiles of a LOOKREPLY start
+		private int packedStart = -1;
+
+		Decoder(byte buffer[], int position, int end) {
+			this.buffer = buffer;
+			this.position = position;
+			this.end = end;
+		}
+
+		boolean hasMore() {
+			return this.position < this.end;
+		}
+
+		int varint() throws ProtocolException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (this.position >= this.end) {
+					throw new ProtocolException("frame too short");
+				}
+				final int b = this.buffer[this.position++];
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new ProtocolException("invalid varint");
+		}
+
+		int signedVarint() throws ProtocolException {
+			final int value = varint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * @return the tile packed at the index, the tiles following the last
+		 *         value read
+		 */
+		int nibble(int index) throws ProtocolException {
+			if (this.packedStart < 0) {
+				this.packedStart = this.position;
+			}
+			final int offset = this.packedStart + index / 2;
+			if (offset >= this.end) {
+				throw new ProtocolException("frame too short");
+			}
+			this.position = offset + 1;
+			return (index % 2 == 0) ? (this.buffer[offset] & 0x0f) : ((this.buffer[offset] >> 4) & 0x0f);
+		}
+	}
+
+	/**
+	 * Lets a client read the server's frames as text, e.g. through a
+	 * BufferedReader, each message followed by a line separator
+	 */
+	static final class MessageReader extends Reader {
+		private final InputStream in;
+		private final BinaryProtocol protocol = forClient();
+		private final StringBuilder pending;
+		private int pendingStart = 0;
+
+		/**
+		 * @param in
+		 *            the stream of frames from the server
+		 * @param earlier
+		 *            text received before the switch to frames, read first
+		 */
+		MessageReader(InputStream in, CharSequence earlier) {
+			this.in = in;
+			this.pending = new StringBuilder(earlier);
+		}
+
+		@Override
+		public int read(char cbuf[], int off, int len) throws IOException {
+			if (this.pendingStart == this.pending.length()) {
+				this.pending.setLength(0);
+				this.pendingStart = 0;
+				if (!this.protocol.readFrom(this.in, this.pending)) {
+					return -1;
+				}
+				this.pending.append(LINE_SEPARATOR);
+			}
+
+			final int count = Math.min(len, this.pending.length() - this.pendingStart);
+			this.pending.getChars(this.pendingStart, this.pendingStart + count, cbuf, off);
+			this.pendingStart += count;
+			return count;
+		}
+
+		@Override
+		public boolean ready() throws IOException {
+			return (this.pendingStart < this.pending.length()) || (this.in.available() > 0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+
+	/**
+	 * Lets a client write commands as text, e.g. through a PrintWriter, each
+	 * line being sent as a frame
+	 */
+	static final class CommandWriter extends Writer {
+		private final OutputStream out;
+		private final BinaryProtocol protocol = forClient();
+		private final StringBuilder line = new StringBuilder();
+
+		CommandWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char cbuf[], int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				if (cbuf[i] == '\n') {
+					if ((this.line.length() > 0)
+							&& (this.line.charAt(this.line.length() - 1) == '\r')) {
+						this.line.setLength(this.line.length() - 1);
+					}
+					this.protocol.encode(this.line);
+					this.protocol.writeTo(this.out);
+					this.line.setLength(0);
+				} else {
+					this.line.append(cbuf[i]);
+				}
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.out.close();
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Client class creates a graphical user interface along with input
@@ -18,6 +19,8 @@ public class Client implements ActionListener, Runnable {
 
     private final String hostName;
     private final int portNumber;
+    // Whether to switch the connection to the binary protocol
+    private final boolean binary;
     private JLabel turnIndicatorText = new JLabel("<html> YOUR TURN: <font color=red>FALSE</font></html>", SwingConstants.CENTER);
     private JFrame gameBoyFrame;
     private JPanel gameBoyContainer;
@@ -45,7 +48,8 @@ public class Client implements ActionListener, Runnable {
     public static void main(String[] args) {
         int portNumber = Integer.parseInt(args[0]);
         String hostName = args[1];
-        new Thread(new Client(portNumber, hostName)).start();
+        boolean binary = args.length > 2 && args[2].equals("binary");
+        new Thread(new Client(portNumber, hostName, binary)).start();
     }
 
     /**
@@ -54,8 +58,18 @@ public class Client implements ActionListener, Runnable {
      * @param hostName the host name to connect to
      */
     public Client(int portNumber,String hostName) {
+        this(portNumber, hostName, false);
+    }
+
+    /**
+     * @param portNumber the port number to connect to
+     * @param hostName the host name to connect to
+     * @param binary whether to talk to the server with the binary protocol
+     */
+    public Client(int portNumber, String hostName, boolean binary) {
         this.hostName = hostName;
         this.portNumber = portNumber;
+        this.binary = binary;
     }
 
     @Override
@@ -99,8 +113,12 @@ public class Client implements ActionListener, Runnable {
         Socket socket;
         try {
             socket = new Socket(hostName, portNumber);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (binary) {
+                useBinaryProtocol(socket);
+            } else {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            }
             if(socket.isClosed()) {
                 System.err.println("Socket not open");
                 System.exit(1);
@@ -116,6 +134,49 @@ public class Client implements ActionListener, Runnable {
         }
     }
 
+    /**
+     * Asks the server to switch to the binary protocol, before anything else is
+     * sent so the first SUCCESS must be the answer. Messages that arrive first
+     * are kept for the input thread. If the server refuses, the connection
+     * stays on the text protocol.
+     * @param socket the connection to the server
+     */
+    private void useBinaryProtocol(Socket socket) throws IOException {
+        OutputStream socketOut = new BufferedOutputStream(socket.getOutputStream());
+        InputStream socketIn = new BufferedInputStream(socket.getInputStream());
+        socketOut.write((BinaryProtocol.SWITCH_COMMAND + "\n").getBytes(StandardCharsets.US_ASCII));
+        socketOut.flush();
+
+        StringBuilder earlier = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = socketIn.read()) != -1) {
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            if (line.toString().equals("SUCCESS")) {
+                out = new PrintWriter(new BinaryProtocol.CommandWriter(socketOut), true);
+                in = new BufferedReader(new BinaryProtocol.MessageReader(socketIn, earlier));
+                return;
+            }
+            if (line.toString().startsWith("FAIL")) {
+                break;
+            }
+            earlier.append(line).append(System.lineSeparator());
+            line.setLength(0);
+        }
+
+        // Carry on with text, starting with what has been read already
+        System.out.println("Server does not support the binary protocol");
+        out = new PrintWriter(socketOut, true);
+        in = new BufferedReader(new InputStreamReader(new SequenceInputStream(
+                new ByteArrayInputStream(earlier.toString().getBytes(StandardCharsets.US_ASCII)), socketIn)));
+    }
+
     /**
      * Sets the look and feel of the Java Swing application depending
      * on the native operating system currently being used
@@ -215,6 +276,9 @@ public class Client implements ActionListener, Runnable {
         gameBoyContainer.add(gameBoardPanel);
         gameBoardPanel.setBackground(Color.black);
         gameBoardPanel.setToolTipText("The game board");
+        // Ask for other players' movements to be sent as changes to the board,
+        // so the board can be updated without sending another LOOK
+        out.println("DELTAS");
         out.println("LOOK");
     }
 
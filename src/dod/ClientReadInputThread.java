@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.Arrays;
 
 /**
  * Thread allows Client to reads in all incoming messages from the server
@@ -14,7 +15,10 @@ public class ClientReadInputThread implements Runnable {
     private final BufferedReader in;
     private final Socket socket;
     private final Client client;
-    private char[][] lookReply = new char[7][7];
+    // The board shows the tiles up to three away from the player, in the middle
+    private static final int BOARD_SIZE = 7;
+    private static final int BOARD_CENTRE = BOARD_SIZE / 2;
+    private char[][] lookReply = new char[BOARD_SIZE][BOARD_SIZE];
     private File applauseSound = new File("resources/applause.wav");
     private File tromboneSound = new File("resources/trombone.wav");
     private File coinDropSsound = new File("resources/coindrop.wav");
@@ -61,6 +65,10 @@ public class ClientReadInputThread implements Runnable {
                     } else if (command.startsWith("STARTTURN")) {
                         // Set the turn indicator to true
                         client.updateTurnIndicator(true);
+                    } else if (command.startsWith("LOOKDELTA")) {
+                        // Some tiles we can see have changed, so patch them in
+                        applyLookDelta(command);
+                        client.updateGameBoard(lookReply);
                     } else if (command.startsWith("CHANGE")) {
                         // If a change message is received the we need to send a look message so the server
                         client.sendLook();
@@ -81,39 +89,53 @@ public class ClientReadInputThread implements Runnable {
         }
     }
 
+    /**
+     * Updates the tiles listed in a LOOKDELTA, each given as a column and row
+     * relative to the player in the middle of the board, and its new content.
+     * Tiles too far away for the board to show are left out.
+     * @param command the LOOKDELTA message
+     */
+    public void applyLookDelta(String command) {
+        String[] tiles = command.split(" ");
+        for (int i = 1; i < tiles.length; i++) {
+            String[] tile = tiles[i].split(",");
+            try {
+                int col = BOARD_CENTRE + Integer.parseInt(tile[0]);
+                int row = BOARD_CENTRE + Integer.parseInt(tile[1]);
+                if (col >= 0 && col < BOARD_SIZE && row >= 0 && row < BOARD_SIZE) {
+                    lookReply[col][row] = tile[2].charAt(0);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("Failed to apply " + command);
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of a LOOKREPLY onto the board with the player in the
+     * middle. The reply is as wide and high as the player can see, so one
+     * smaller than the board is padded out with blank tiles and one larger is
+     * cut down to the tiles around the player.
+     */
     public void buildLookReply(BufferedReader in) {
         try {
-            // Skip over the first line
             String line = in.readLine();
-            if (line.length() < 7) {
-                // Then they don't have a lantern so we need to pad out the output to fill
-                // the 7x7 array
-                for (int x = 1; x <= 5; x++) {
-                    line = "X" + line + "X";
-                    int y = 0;
-                    for (char e : line.toCharArray()) {
-                        lookReply[y][x] = e;
-                        y++;
-                    }
-                    line = this.in.readLine();
-                }
-                // Then deal with the missing top and bottom lines
-                int z = 0;
-                for (char e : "XXXXXXX".toCharArray()) {
-                    lookReply[z][6] = e;
-                    lookReply[z][0] = e;
-                    z++;
-                }
-            } else {
-                // Then they have a lantern so we don't need to worry about padding
-                for (int x = 0; x < 7; x++) {
-                    int y = 0;
-                    for (char e : line.toCharArray()) {
-                        lookReply[y][x] = e;
-                        y++;
+            int size = line.length();
+            // Where the reply's first row and column go on the board, negative when it is larger
+            int offset = BOARD_CENTRE - size / 2;
+            for (char[] column : lookReply) {
+                Arrays.fill(column, 'X');
+            }
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < line.length(); col++) {
+                    int x = offset + col;
+                    int y = offset + row;
+                    if (x >= 0 && x < BOARD_SIZE && y >= 0 && y < BOARD_SIZE) {
+                        lookReply[x][y] = line.charAt(col);
                     }
-                    line = this.in.readLine();
                 }
+                // After the last row this skips the blank line ending the reply
+                line = in.readLine();
             }
         } catch (IOException e) {
             System.out.println("Failed to build lookReply");
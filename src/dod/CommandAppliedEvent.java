@@ -0,0 +1,32 @@
+package dod;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A command carried out by the game, recorded by Java Flight Recorder when a
+ * recording is running
+ */
+@Name("dod.CommandApplied")
+@Label("Command Applied")
+@Category({ "Dungeons of Doom", "Commands" })
+@Description("A command carried out by the game, including outputting the response")
+final class CommandAppliedEvent extends Event {
+
+	@Label("User")
+	@Description("Identifies the connection, the same as in Command Received")
+	long userID;
+
+	@Label("Player")
+	int playerID;
+
+	@Label("Command")
+	@Description("The name of the command, or INVALID")
+	String command;
+
+	@Label("Failed")
+	boolean failed;
+}
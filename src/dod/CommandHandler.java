@@ -0,0 +1,28 @@
+package dod;
+
+import dod.game.CommandException;
+
+/**
+ * Carries out one text command, e.g. MOVE, for a CommandLineUser. Handlers are
+ * registered against the command's name in a CommandRegistry.
+ */
+@FunctionalInterface
+public interface CommandHandler {
+
+	/**
+	 * Carries out the command
+	 *
+	 * @param user
+	 *            the user who sent the command
+	 * @param line
+	 *            the whole command line, as the user sent it, or for a command
+	 *            decoded from a binary frame just its argument. Nothing before
+	 *            the argument should be read.
+	 * @param argStart
+	 *            the index of the argument in the line, or -1 if there is no
+	 *            argument
+	 * @throws CommandException
+	 *             if the command fails, the user is sent FAIL and the message
+	 */
+	void handle(CommandLineUser user, String line, int argStart) throws CommandException;
+}
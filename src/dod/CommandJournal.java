@@ -0,0 +1,575 @@
+package dod;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only record of everything that changed one game: players joining
+ * and leaving, and every command in the order the game applied it. Together
+ * with the seed and map the game was created with, which start the journal,
+ * it is enough for JournalReplayer to play the game out again exactly.
+ *
+ * The game's thread encodes records into a buffer, and full buffers are
+ * handed to a background thread which writes them to the file, so the game
+ * never waits for the disk unless the writer falls a few buffers behind. Once
+ * nothing has been handed over for a while, the writer takes whatever has been
+ * recorded itself, so little is lost if the server dies.
+ *
+ * The file starts with MAGIC, VERSION as a short, the seed as a long, the look
+ * distance as an int and the map file name as DataOutput.writeUTF writes it.
+ * Every record after that is its kind and then varints: the nanoseconds since
+ * the last record, the player, and for a command its opcode and argument, the
+ * argument as its length followed by its characters. A command sent without
+ * any argument has a length of -1, since "PICKUP" and "PICKUP " are handled
+ * differently. The first time a command is journaled, a DEFINE record gives
+ * its opcode and name. Opcode 0 is a command line which was not a command at
+ * all, with the whole line as its argument.
+ *
+ * Records are only made by the game's thread, the journal is locked so it
+ * can safely be closed by another, e.g. as the server shuts down.
+ */
+public final class CommandJournal implements Closeable {
+
+	static final int MAGIC = 0x444f444a; // DODJ
+	static final int VERSION = 2;
+
+	// The kinds of record
+	static final int JOIN = 1;
+	static final int LEAVE = 2;
+	static final int COMMAND = 3;
+	static final int DEFINE = 4;
+
+	// The opcode of a line that was not any command
+	static final int NOT_A_COMMAND = 0;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Buffers the game can fill before it waits for the writer, counting one
+	// made for a record too big for the others in place of the one it replaced
+	private static final int BUFFERS = 4;
+	// How long the writer waits for a full buffer before taking a partly filled one
+	private static final long WRITE_INTERVAL_MILLIS = 200;
+	// The longest a record can be besides its argument, or a DEFINE's name
+	private static final int MAX_RECORD_HEADER = 1 + 10 + 5 + 5 + 5;
+
+	private final FileChannel channel;
+	private final Thread writer;
+	// Filled buffers waiting to be written, with room for every buffer and END
+	private final BlockingQueue<ByteBuffer> written = new ArrayBlockingQueue<ByteBuffer>(BUFFERS + 1);
+	// Empty buffers to fill, guarded by the journal's monitor, which is
+	// waited on for the writer to give one back
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>(BUFFERS);
+	// Tells the writer there is nothing more to write
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	// The buffer being filled, null once closed
+	private ByteBuffer buffer;
+	private long lastRecordNanos = System.nanoTime();
+
+	// Command names by journal opcode, starting from 1
+	private String commands[] = new String[16];
+	private int commandCount = 1;
+
+	// The first error writing the file, after which nothing more is written
+	private volatile IOException failure = null;
+
+	/**
+	 * Creates a journal, replacing any file already there, and starts its
+	 * writer thread
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param mapFile
+	 *            the game's map file, as given to GameLogic
+	 * @param lookDistance
+	 *            the game's look distance, see GameLogic.getLookDistance
+	 * @param seed
+	 *            the game's seed, see GameLogic.getSeed
+	 */
+	public CommandJournal(File file, String mapFile, int lookDistance, long seed) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		for (int i = 0; i < BUFFERS; i++) {
+			this.free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+		this.buffer = this.free.poll();
+
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(seed);
+		out.writeInt(lookDistance);
+		out.writeUTF(mapFile);
+		this.buffer.put(header.toByteArray());
+
+		this.writer = new Thread(this::write, "journal-writer-" + file.getName());
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Records a player joining the game
+	 */
+	public synchronized void join(int playerID) {
+		startRecord(JOIN, playerID, 0);
+	}
+
+	/**
+	 * Records a player leaving the game
+	 */
+	public synchronized void leave(int playerID) {
+		startRecord(LEAVE, playerID, 0);
+	}
+
+	/**
+	 * Records a command about to be applied to the game
+	 *
+	 * @param command
+	 *            the name of the command, or null if the line is not one
+	 * @param line
+	 *            the line the command was read from
+	 * @param argStart
+	 *            where the command's argument starts in the line, or -1 if it
+	 *            has none
+	 */
+	synchronized void command(int playerID, String command, String line, int argStart) {
+		if ((this.buffer == null) || (this.failure != null)) {
+			return;
+		}
+		final int opcode = (command == null) ? NOT_A_COMMAND : opcodeOf(command);
+		if ((command != null) && (argStart < 0)) {
+			if (startRecord(COMMAND, playerID, 0)) {
+				putVarint(opcode);
+				putVarint(-1);
+			}
+			return;
+		}
+		final int start = (command == null) ? 0 : argStart;
+		if (startRecord(COMMAND, playerID, line.length() - start)) {
+			putVarint(opcode);
+			putChars(line, start, line.length());
+		}
+	}
+
+	/**
+	 * Writes everything recorded and closes the file, waiting at most a
+	 * second for the writer to finish
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.buffer == null) {
+				return;
+			}
+			if (this.buffer.position() > 0) {
+				this.buffer.flip();
+				queue(this.buffer);
+			}
+			this.buffer = null;
+			queue(END);
+			// Wakes the game's thread if it is waiting for a buffer
+			notifyAll();
+		}
+		// Not holding the monitor, which the writer needs to give buffers back
+		try {
+			this.writer.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.failure != null) {
+			throw this.failure;
+		}
+	}
+
+	/**
+	 * Makes room for a record and writes the part every record has
+	 *
+	 * @param chars
+	 *            the number of characters the record's argument has
+	 * @return false if the journal is closed, or could not be written
+	 */
+	private boolean startRecord(int kind, int playerID, int chars) {
+		if ((this.failure != null) || !ensureRoom(MAX_RECORD_HEADER + 3 * chars)) {
+			return false;
+		}
+		final long now = System.nanoTime();
+		this.buffer.put((byte) kind);
+		putVarint(now - this.lastRecordNanos);
+		putVarint(playerID);
+		this.lastRecordNanos = now;
+		return true;
+	}
+
+	/**
+	 * @return the journal opcode of a command, defining it the first time
+	 */
+	private int opcodeOf(String command) {
+		for (int opcode = 1; opcode < this.commandCount; opcode++) {
+			if (this.commands[opcode].equals(command)) {
+				return opcode;
+			}
+		}
+
+		if (this.commandCount == this.commands.length) {
+			this.commands = Arrays.copyOf(this.commands, this.commandCount * 2);
+		}
+		final int opcode = this.commandCount++;
+		this.commands[opcode] = command;
+		if (ensureRoom(1 + 5 + 5 + 3 * command.length())) {
+			this.buffer.put((byte) DEFINE);
+			putVarint(opcode);
+			putChars(command, 0, command.length());
+		}
+		return opcode;
+	}
+
+	/**
+	 * Makes sure the buffer being filled has room for a record, handing it
+	 * over once it is full
+	 *
+	 * @return false if the journal was closed meanwhile
+	 */
+	private boolean ensureRoom(int bytes) {
+		while ((this.buffer != null) && (this.buffer.remaining() < bytes)) {
+			if (this.buffer.position() == 0) {
+				// Only for a record bigger than a whole buffer, which takes
+				// the empty buffer's place until it has been written
+				this.buffer = ByteBuffer.allocate(bytes);
+			} else {
+				handOver();
+			}
+		}
+		return this.buffer != null;
+	}
+
+	/**
+	 * Gives the buffer being filled to the writer and takes an empty one,
+	 * waiting if the writer is that far behind. While waiting the writer may
+	 * take the buffer itself, or the journal may be closed.
+	 */
+	private void handOver() {
+		final ByteBuffer full = this.buffer;
+		boolean interrupted = false;
+		while (this.free.isEmpty() && (this.buffer == full)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.buffer == full) {
+			full.flip();
+			this.buffer = this.free.poll();
+			queue(full);
+		}
+	}
+
+	/**
+	 * Queues a buffer for the writer. Only as many buffers as there are, and
+	 * END, are ever queued, so this never waits.
+	 */
+	private void queue(ByteBuffer buffer) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				this.written.put(buffer);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Takes whatever has been recorded when the writer has nothing else to
+	 * write, swapping in an empty buffer if there is one
+	 *
+	 * @return the records, ready to be written, or null if there are none
+	 */
+	private synchronized ByteBuffer takeRecorded() {
+		// Anything queued since the writer looked was recorded first
+		if ((this.buffer == null) || (this.buffer.position() == 0) || !this.written.isEmpty()
+				|| this.free.isEmpty()) {
+			return null;
+		}
+		final ByteBuffer recorded = this.buffer;
+		this.buffer = this.free.poll();
+		recorded.flip();
+		// The game's thread may be waiting to hand this buffer over
+		notifyAll();
+		return recorded;
+	}
+
+	/**
+	 * Gives a written buffer back to be filled again
+	 */
+	private synchronized void recycle(ByteBuffer written) {
+		if (written.capacity() == BUFFER_SIZE) {
+			written.clear();
+			this.free.add(written);
+		} else {
+			this.free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Run by the writer thread until the journal is closed
+	 */
+	private void write() {
+		try {
+			while (true) {
+				ByteBuffer next = this.written.poll(WRITE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				if (next == null) {
+					next = takeRecorded();
+					if (next == null) {
+						continue;
+					}
+				}
+				if (next == END) {
+					break;
+				}
+				try {
+					while (next.hasRemaining()) {
+						this.channel.write(next);
+					}
+				} catch (IOException e) {
+					if (this.failure == null) {
+						System.err.println("Could not write the command journal: " + e.getMessage());
+						this.failure = e;
+					}
+				}
+				recycle(next);
+			}
+		} catch (InterruptedException e) {
+			// Stop writing, the file is closed below
+		} finally {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// Nothing more can be done
+			}
+		}
+	}
+
+	private void putVarint(long value) {
+		// Zig-zag, so small negative numbers are small too
+		long bits = (value << 1) ^ (value >> 63);
+		while ((bits & ~0x7fL) != 0) {
+			this.buffer.put((byte) ((bits & 0x7f) | 0x80));
+			bits >>>= 7;
+		}
+		this.buffer.put((byte) bits);
+	}
+
+	private void putChars(String text, int start, int end) {
+		putVarint(end - start);
+		for (int i = start; i < end; i++) {
+			putVarint(text.charAt(i));
+		}
+	}
+
+	/**
+	 * Reads a journal back, one record at a time
+	 */
+	static final class Reader implements Closeable {
+		private final DataInputStream in;
+		private final long seed;
+		private final int lookDistance;
+		private final String mapFile;
+
+		private String commands[] = new String[16];
+		private final StringBuilder chars = new StringBuilder();
+
+		// The last record read
+		private int kind;
+		private long nanos = 0;
+		private int playerID;
+		private String command;
+		private String argument;
+
+		Reader(File file) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			try {
+				if (this.in.readInt() != MAGIC) {
+					throw new IOException(file + " is not a command journal");
+				}
+				final int version = this.in.readShort();
+				if (version != VERSION) {
+					throw new IOException(file + " is a journal of version " + version + ", not " + VERSION);
+				}
+				this.seed = this.in.readLong();
+				this.lookDistance = this.in.readInt();
+				this.mapFile = this.in.readUTF();
+			} catch (EOFException e) {
+				this.in.close();
+				throw new IOException(file + " is not a command journal");
+			} catch (IOException e) {
+				this.in.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Reads the next JOIN, LEAVE or COMMAND
+		 *
+		 * @return false at the end of the journal
+		 */
+		boolean next() throws IOException {
+			while (true) {
+				final int kind = this.in.read();
+				if (kind < 0) {
+					return false;
+				}
+				try {
+					if (kind == DEFINE) {
+						final int opcode = (int) readVarint(this.in);
+						if (opcode >= this.commands.length) {
+							this.commands = Arrays.copyOf(this.commands, opcode * 2);
+						}
+						this.commands[opcode] = readChars();
+						continue;
+					}
+					if ((kind != JOIN) && (kind != LEAVE) && (kind != COMMAND)) {
+						throw new IOException("unknown record kind " + kind);
+					}
+					this.kind = kind;
+					this.nanos += readVarint(this.in);
+					this.playerID = (int) readVarint(this.in);
+					if (kind == COMMAND) {
+						final int opcode = (int) readVarint(this.in);
+						if ((opcode != NOT_A_COMMAND)
+								&& ((opcode >= this.commands.length) || (this.commands[opcode] == null))) {
+							throw new IOException("undefined command opcode " + opcode);
+						}
+						this.command = this.commands[opcode];
+						this.argument = readChars();
+						if ((this.argument == null) && (opcode == NOT_A_COMMAND)) {
+							throw new IOException("a line which is not a command must be journaled whole");
+						}
+					} else {
+						this.command = null;
+						this.argument = null;
+					}
+					return true;
+				} catch (EOFException e) {
+					// The server stopped part way through writing a record
+					return false;
+				}
+			}
+		}
+
+		long seed() {
+			return this.seed;
+		}
+
+		int lookDistance() {
+			return this.lookDistance;
+		}
+
+		String mapFile() {
+			return this.mapFile;
+		}
+
+		/**
+		 * @return JOIN, LEAVE or COMMAND
+		 */
+		int kind() {
+			return this.kind;
+		}
+
+		/**
+		 * @return when the record was made, in nanoseconds after the first
+		 */
+		long nanos() {
+			return this.nanos;
+		}
+
+		int playerID() {
+			return this.playerID;
+		}
+
+		/**
+		 * @return the name of the command, or null if the line was not one
+		 */
+		String command() {
+			return this.command;
+		}
+
+		/**
+		 * @return the command's argument, which may be empty, null if it was
+		 *         sent without one, or the whole line if it was not a command
+		 */
+		String argument() {
+			return this.argument;
+		}
+
+		/**
+		 * @return the command line as the user sent it, give or take the case
+		 *         of the command's name, which is looked up ignoring case
+		 */
+		String line() {
+			if (this.command == null) {
+				return this.argument;
+			}
+			return (this.argument == null) ? this.command : this.command + " " + this.argument;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+
+		/**
+		 * @return the characters, or null for a length of -1
+		 */
+		private String readChars() throws IOException {
+			final int length = (int) readVarint(this.in);
+			if (length < 0) {
+				return null;
+			}
+			this.chars.setLength(0);
+			for (int i = 0; i < length; i++) {
+				this.chars.append((char) readVarint(this.in));
+			}
+			return this.chars.toString();
+		}
+
+		private static long readVarint(InputStream in) throws IOException {
+			long bits = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = in.read();
+				if (b < 0) {
+					throw new EOFException();
+				}
+				bits |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return (bits >>> 1) ^ -(bits & 1);
+				}
+			}
+			throw new IOException("varint too long");
+		}
+	}
+}
@@ -4,6 +4,8 @@ import dod.game.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An abstract class to handle the parsing and handling of textual commands,
@@ -17,12 +19,33 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	// This is private to enforce the use of "processCommand".
 	private final GameLogic game;
 
+	// Looks up the handler of each command
+	private static final CommandRegistry STANDARD_COMMANDS = standardCommands();
+
+	// The characters allowed in names and shouts, indexed by character
+	private static final boolean MESSAGE_CHARACTERS[] = messageCharacters();
+	private final CommandRegistry commands;
+
+	// Records everything the user does to the game, or null
+	private CommandJournal journal = null;
+
 	// The player must be added onnto the map. Initially it is not.
 	private boolean playerAdded = false;
 
 	//The ID of the player on the map.
 	int playerID = -1;
 
+	// Tells users apart in flight recordings, where player IDs are reused by
+	// every game
+	private static final AtomicLong NEXT_USER_ID = new AtomicLong();
+	private final long userID = NEXT_USER_ID.incrementAndGet();
+
+	// Load the flight recorder events before the first command, see GameLogic
+	static {
+		new CommandReceivedEvent();
+		new CommandAppliedEvent();
+	}
+
 	// In order to ensure the specification is met, we need to ensure that
 	// a response is sent after a command, before anything else is sent.
 	// Therefore, we use "waitingForResponse" as a flag for this, and
@@ -31,8 +54,35 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	private boolean waitingForResponse = false;
 	private final List<String> messageBuffer;
 
+	// Reused for every LOOK, so rendering the reply does not allocate
+	private final StringBuilder lookReply = new StringBuilder();
+
+	// Whether the user asked for changes to their view to be sent as
+	// LOOKDELTA messages, rather than a CHANGE asking them to LOOK again
+	private boolean viewDeltas = false;
+	private final StringBuilder lookDelta = new StringBuilder();
+
+	// A client this far behind with its output is sent a CHANGE rather than
+	// every LOOKDELTA, so it catches up with one LOOK
+	private static final int COALESCE_BACKLOG = 16 * 1024;
+	// Set once the user has been sent CHANGE, until they are sent a LOOKREPLY.
+	// The LOOK they make in response shows every change since, so there is
+	// no need to tell them about those.
+	private boolean changePending = false;
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	CommandLineUser(GameLogic game) {
+		this(game, STANDARD_COMMANDS);
+	}
+
+	/**
+	 * @param commands
+	 *            the commands the user understands, e.g. standardCommands with
+	 *            some more added
+	 */
+	CommandLineUser(GameLogic game, CommandRegistry commands) {
 		this.game = game;
+		this.commands = commands;
 
 		this.messageBuffer = new ArrayList<String>();
 	}
@@ -48,11 +98,35 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 
 
 	/**
-	 * Sends a message to all clients informing of a change
+	 * Informs the user that tiles they can see have changed. Users who sent
+	 * DELTAS get the changed tiles, e.g. "LOOKDELTA -1,0,. 0,1,P" where each
+	 * tile is the column and row relative to the player and the character a
+	 * LOOK would now show. Anyone else is sent CHANGE.
+	 * 
+	 * Only one CHANGE is sent until the user next LOOKs, however many times
+	 * their view changes in between.
 	 */
 	@Override
-	public void change() {
-		outputMessage("CHANGE", false);
+	public void change(ViewDelta delta) {
+		if (this.changePending) {
+			viewUpdateSkipped(this.viewDeltas);
+			return;
+		}
+		if (!this.viewDeltas || (outputQueued() - outputSent() > COALESCE_BACKLOG)) {
+			if (this.viewDeltas) {
+				viewUpdateSkipped(true);
+			}
+			outputMessage("CHANGE", false);
+			this.changePending = true;
+			return;
+		}
+
+		if (this.waitingForResponse) {
+			// Held back as text until the response has been output
+			this.messageBuffer.add(renderDelta(delta).toString());
+		} else {
+			doOutputDelta(delta);
+		}
 	}
 
 	/**
@@ -112,20 +186,97 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 *            the string containing the command and any argument
 	 */
 	protected final void processCommand(String commandString) {
-		if(commandString.length() == 0) {
+		// Find the command and its argument in place, e.g. MOVE N
+		final int commandEnd = commandString.indexOf(' ');
+		processCommand(this.commands.opcodeOf(commandString, 0,
+				(commandEnd < 0) ? commandString.length() : commandEnd), commandString,
+				(commandEnd < 0) ? -1 : commandEnd + 1);
+	}
+
+	/**
+	 * Processes a command which has already been looked up, e.g. one decoded
+	 * from a binary frame.
+	 * 
+	 * @param opcode
+	 *            the command's opcode in the user's registry, see getCommands,
+	 *            or -1 if there is no such command
+	 * @param line
+	 *            the line holding the command's argument, which for a command
+	 *            without one may be just its name
+	 * @param argStart
+	 *            the index of the argument in the line, or -1 if there is none
+	 */
+	protected final void processCommand(int opcode, String line, int argStart) {
+		if ((opcode < 0) && (line.length() == 0)) {
 			return;
 		}
 
-		// Process the command string e.g. MOVE N
-		final String commandStringSplit[] = commandString.split(" ", 2);
-		final String command = commandStringSplit[0].toUpperCase();
-		final String arg = ((commandStringSplit.length == 2) ? commandStringSplit[1].toUpperCase() : null);
+		final String name = (opcode < 0) ? null : this.commands.name(opcode);
+		if ((this.journal != null) && this.playerAdded) {
+			this.journal.command(this.playerID, name, line, argStart);
+		}
 
+		final CommandAppliedEvent applied = new CommandAppliedEvent();
+		applied.begin();
+		final long start = System.nanoTime();
+		boolean failed = false;
 		try {
-			processCommandAndArgument(command, arg);
+			if (!this.playerAdded) {
+				throw new RuntimeException("Player not added");
+			}
+			if (opcode < 0) {
+				// If it is none of the commands then it must be a bad command.
+				throw new CommandException("invalid command");
+			}
+			this.commands.handler(opcode).handle(this, line, argStart);
 		} catch (final CommandException e) {
+			failed = true;
 			outputMessage("FAIL " + e.getMessage(), true);
 		}
+		commandProcessed(name, System.nanoTime() - start, failed);
+
+		applied.end();
+		if (applied.shouldCommit()) {
+			applied.userID = this.userID;
+			applied.playerID = this.playerID;
+			applied.command = (name == null) ? "INVALID" : name;
+			applied.failed = failed;
+			applied.commit();
+		}
+	}
+
+	/**
+	 * Called by the sub-class as each command is read, before it waits to be
+	 * processed, so a flight recording shows how long commands queue for
+	 * 
+	 * @param commandString
+	 *            the string containing the command and any argument
+	 */
+	protected final void commandReceived(String commandString) {
+		if (commandString.length() == 0) {
+			// Ignored by processCommand
+			return;
+		}
+		final CommandReceivedEvent received = new CommandReceivedEvent();
+		if (received.shouldCommit()) {
+			received.userID = this.userID;
+			received.command = commandString;
+			received.commit();
+		}
+	}
+
+	/**
+	 * Called by the sub-class as each command which has already been looked
+	 * up is read, see processCommand
+	 * 
+	 * @param opcode
+	 *            the command's opcode in the user's registry, or -1 if there
+	 *            is no such command
+	 * @param line
+	 *            the line the command was read from
+	 */
+	protected final void commandReceived(int opcode, String line) {
+		commandReceived((opcode < 0) ? line : this.commands.name(opcode));
 	}
 
 	/**
@@ -146,6 +297,9 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		// Ensures that the instance will listen to the player in the
 		// game for messages from the game
 		this.playerID = this.game.addPlayer(this);
+		if (this.journal != null) {
+			this.journal.join(this.playerID);
+		}
 	}
 
 	protected void removePlayer() {
@@ -154,173 +308,396 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		}
 		this.playerAdded = false;
 
+		if (this.journal != null) {
+			this.journal.leave(this.playerID);
+		}
 		this.game.removePlayer(this.playerID);
 	}
 
+	/**
+	 * Records the user joining and leaving, and every command they send, in
+	 * their game's journal. Must be called before the player is added.
+	 * 
+	 * @param journal
+	 *            the journal of the game, or null to record nothing
+	 */
+	protected final void journalTo(CommandJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * The connection's output counters, which let view updates be skipped for
+	 * a client that has fallen behind. A user without a queue sends every
+	 * message straight away, so by default nothing is ever left unsent.
+	 * 
+	 * @return the number of bytes of output queued over the life of the user
+	 */
+	protected long outputQueued() {
+		return 0;
+	}
+
+	/**
+	 * @return the number of bytes of output sent over the life of the user
+	 */
+	protected long outputSent() {
+		return 0;
+	}
+
+	/**
+	 * Called when a view update is not sent, because the client is behind or
+	 * is yet to LOOK after the last CHANGE
+	 * 
+	 * @param coalesced
+	 *            true if a LOOKDELTA was replaced by a CHANGE, false if a
+	 *            CHANGE was dropped
+	 */
+	protected void viewUpdateSkipped(boolean coalesced) {
+	}
+
+	/**
+	 * Called once a command has been carried out, or has failed, e.g. to
+	 * record how long it took
+	 * 
+	 * @param command
+	 *            the name of the command in upper case, or null if there is
+	 *            no such command
+	 * @param nanos
+	 *            how long the command took, including outputting the response
+	 * @param failed
+	 *            whether the response was FAIL
+	 */
+	protected void commandProcessed(String command, long nanos, boolean failed) {
+	}
+
+	/**
+	 * Whether the user can switch to the binary protocol, see BinaryProtocol.
+	 * BINARY fails for users who cannot.
+	 * 
+	 * @return false unless the sub-class supports it
+	 */
+	protected boolean canUseBinaryProtocol() {
+		return false;
+	}
+
+	/**
+	 * Called once the response to BINARY has been output, so every later
+	 * message is sent in binary frames. Only called if canUseBinaryProtocol
+	 * returns true, so sub-classes supporting it override both.
+	 */
+	protected void useBinaryProtocol() {
+	}
+
+	/**
+	 * Outputs the reply to LOOK. By default it is rendered as text and output
+	 * like any other message, a sub-class which can send the tiles in some
+	 * other form overrides it.
+	 * 
+	 * @param tiles
+	 *            the tiles the player can see, row by row, each the character
+	 *            the text of the reply shows. Only valid during the call.
+	 */
+	protected void doOutputLook(char tiles[]) {
+		// The view is square
+		final int width = (int) Math.sqrt(tiles.length);
+		this.lookReply.setLength(0);
+		this.lookReply.append("LOOKREPLY").append(LINE_SEPARATOR);
+		for (int start = 0; start < tiles.length; start += width) {
+			this.lookReply.append(tiles, start, width).append(LINE_SEPARATOR);
+		}
+		doOutputMessage(this.lookReply);
+	}
+
+	/**
+	 * Outputs a LOOKDELTA, see change. By default it is rendered as text and
+	 * output like any other message, a sub-class which can send the tiles in
+	 * some other form overrides it.
+	 * 
+	 * @param delta
+	 *            the tiles which changed, only valid during the call
+	 */
+	protected void doOutputDelta(ViewDelta delta) {
+		doOutputMessage(renderDelta(delta));
+	}
+
 	/**
 	 * Inherited by the base class to handle outputting textual messages in the
 	 * correct manner, e.g. printing to the screen or read by the bot.
 	 * 
 	 * Perhaps this could be used to send text over a network?
 	 * 
-	 * @param message Message to output or act upon
+	 * @param message Message to output or act upon, only valid during the call
 	 */
-	protected abstract void doOutputMessage(String message);
+	protected abstract void doOutputMessage(CharSequence message);
 
 	/**
-	 * Processes the command and an optional argument
+	 * Creates a registry holding the commands every user understands, which
+	 * new commands can be added to
 	 * 
-	 * @param command
-	 *            the text command
-	 * @param arg
-	 *            the text argument (null if no argument)
-	 * @throws CommandException
+	 * @return the registry
 	 */
-	private void processCommandAndArgument(String command, String arg) throws CommandException {
-		if (!this.playerAdded) {
-			throw new RuntimeException("Player not added");
-		}
+	public static CommandRegistry standardCommands() {
+		final CommandRegistry commands = new CommandRegistry();
+		commands.register("HELLO", CommandLineUser::hello);
+		commands.register("LOOK", CommandLineUser::look);
+		commands.register("DELTAS", CommandLineUser::deltas);
+		commands.register("BINARY", CommandLineUser::binary);
+		commands.register("PICKUP", CommandLineUser::pickup);
+		commands.register("MOVE", CommandLineUser::move);
+		commands.register("ATTACK", CommandLineUser::attack);
+		commands.register("ENDTURN", CommandLineUser::endTurn);
+		commands.register("SHOUT", CommandLineUser::shout);
+		commands.register("SETPLAYERPOS", CommandLineUser::setPlayerPos);
+		return commands;
+	}
 
-		if (command.equals("HELLO")) {
-			if (arg == null) {
-				throw new CommandException("HELLO needs an argument");
-			}
+	/**
+	 * @return the commands the user understands, which processCommand looks
+	 *         commands up in
+	 */
+	protected final CommandRegistry getCommands() {
+		return this.commands;
+	}
 
-			final String name = sanitiseMessage(arg);
-			this.waitingForResponse = true;
-			this.game.clientHello(name, this.playerID);
-			outputMessage("HELLO " + name, true);
+	/**
+	 * @return the game the user is playing, for command handlers
+	 */
+	protected final GameLogic getGame() {
+		return this.game;
+	}
 
-		} else if (command.equals("LOOK")) {
-			if (arg != null) {
-				throw new CommandException("LOOK does not take an argument");
-			}
-			this.waitingForResponse = true;
-			outputMessage("LOOKREPLY" + System.getProperty("line.separator")
-					+ this.game.clientLook(this.playerID), true);
+	/**
+	 * Marks the start of a command which is answered with a response. Any
+	 * message the game sends the user before the response is held back until
+	 * the response has been output.
+	 */
+	protected final void expectResponse() {
+		this.waitingForResponse = true;
+	}
 
-		} else if (command.equals("PICKUP")) {
-			if (arg != null) {
-				throw new CommandException("PICKUP does not take an argument");
-			}
+	/**
+	 * Outputs the response to a command, then anything held back
+	 */
+	protected final void outputResponse(CharSequence response) {
+		outputMessage(response, true);
+	}
 
-			this.waitingForResponse = true;
-			this.game.clientPickup(this.playerID);
-			outputSuccess();
+	private void hello(String line, int argStart) throws CommandException {
+		if (argStart < 0) {
+			throw new CommandException("HELLO needs an argument");
+		}
 
-		} else if (command.equals("MOVE")) {
-			// We need to know which direction to move in.
-			if (arg == null) {
-				throw new CommandException("MOVE needs a direction");
-			}
+		final String name = sanitiseMessage(line, argStart);
+		this.waitingForResponse = true;
+		this.game.clientHello(name, this.playerID);
+		outputMessage("HELLO " + name, true);
+	}
 
-			this.waitingForResponse = true;
-			this.game.clientMove(getDirection(arg), this.playerID);
+	private void look(String line, int argStart) throws CommandException {
+		assertNoArgument("LOOK", argStart);
+		this.waitingForResponse = true;
+		doOutputLook(this.game.clientLookTiles(this.playerID));
+		outputHeldBack();
+		this.changePending = false;
+	}
 
-			outputSuccess();
+	private void deltas(String line, int argStart) throws CommandException {
+		assertNoArgument("DELTAS", argStart);
+		this.waitingForResponse = true;
+		this.viewDeltas = true;
+		outputSuccess();
+	}
 
-		} else if (command.equals("ATTACK")) {
-			// We need to know which direction to move in.
-			if (arg == null) {
-				throw new CommandException("ATTACK needs a direction");
-			}
+	private void binary(String line, int argStart) throws CommandException {
+		assertNoArgument("BINARY", argStart);
+		if (!canUseBinaryProtocol()) {
+			throw new CommandException("binary protocol not supported");
+		}
 
-			this.waitingForResponse = true;
-			this.game.clientAttack(getDirection(arg), this.playerID);
+		// The response is the last message sent as text
+		this.waitingForResponse = true;
+		outputSuccess();
+		useBinaryProtocol();
+	}
 
-			outputSuccess();
+	private void pickup(String line, int argStart) throws CommandException {
+		assertNoArgument("PICKUP", argStart);
+		this.waitingForResponse = true;
+		this.game.clientPickup(this.playerID);
+		outputSuccess();
+	}
 
-		} else if (command.equals("ENDTURN")) {
-			this.game.clientEndTurn(this.playerID);
+	private void move(String line, int argStart) throws CommandException {
+		// We need to know which direction to move in.
+		if (argStart < 0) {
+			throw new CommandException("MOVE needs a direction");
+		}
 
-		} else if (command.equals("SHOUT")) {
-			// Ensure they have given us something to shout.
-			if (arg == null) {
-				throw new CommandException("need something to shout");
-			}
+		this.waitingForResponse = true;
+		this.game.clientMove(getDirection(line, argStart), this.playerID);
+		outputSuccess();
+	}
 
-			this.game.clientShout(sanitiseMessage(arg));
+	private void attack(String line, int argStart) throws CommandException {
+		// We need to know which direction to move in.
+		if (argStart < 0) {
+			throw new CommandException("ATTACK needs a direction");
+		}
 
-		} else if (command.equals("SETPLAYERPOS")) {
-			if (arg == null) {
-				throw new CommandException("need a position");
-			}
+		this.waitingForResponse = true;
+		this.game.clientAttack(getDirection(line, argStart), this.playerID);
+		outputSuccess();
+	}
 
-			// Obtain two co-ordinates
-			final String coordinates[] = arg.split(" ");
+	private void endTurn(String line, int argStart) {
+		this.game.clientEndTurn(this.playerID);
+	}
 
-			if (coordinates.length != 2) {
-				throw new CommandException("need two co-ordinates");
-			}
+	private void shout(String line, int argStart) throws CommandException {
+		// Ensure they have given us something to shout.
+		if (argStart < 0) {
+			throw new CommandException("need something to shout");
+		}
 
-			try {
-				final int col = Integer.parseInt(coordinates[0]);
-				final int row = Integer.parseInt(coordinates[1]);
+		this.game.clientShout(sanitiseMessage(line, argStart));
+	}
 
-				this.game.setPlayerPosition(col, row, this.playerID);
-				outputSuccess();
-			} catch (final NumberFormatException e) {
-				throw new CommandException("co-ordinates must be integers");
-			}
+	private void setPlayerPos(String line, int argStart) throws CommandException {
+		if (argStart < 0) {
+			throw new CommandException("need a position");
+		}
 
-		} else {
-			// If it is none of the above then it must be a bad command.
-			throw new CommandException("invalid command");
+		// Obtain two co-ordinates, separated by a single space. Trailing
+		// spaces are ignored.
+		int end = line.length();
+		while ((end > argStart) && (line.charAt(end - 1) == ' ')) {
+			end--;
+		}
+		final int separator = line.indexOf(' ', argStart);
+		final int nextSeparator = (separator < 0) ? -1 : line.indexOf(' ', separator + 1);
+		if ((separator < 0) || (separator >= end)
+				|| ((nextSeparator >= 0) && (nextSeparator < end))) {
+			throw new CommandException("need two co-ordinates");
+		}
+
+		try {
+			final int col = Integer.parseInt(line, argStart, separator, 10);
+			final int row = Integer.parseInt(line, separator + 1, end, 10);
+
+			this.game.setPlayerPosition(col, row, this.playerID);
+			outputSuccess();
+		} catch (final NumberFormatException e) {
+			throw new CommandException("co-ordinates must be integers");
+		}
+	}
+
+	private static void assertNoArgument(String command, int argStart) throws CommandException {
+		if (argStart >= 0) {
+			throw new CommandException(command + " does not take an argument");
 		}
 	}
 
 	/**
-	 * Obtains a compass direction from a string. Used to ensure the correct
-	 * exception type is thrown, and for consistency between MOVE and ATTACK.
+	 * Obtains a compass direction from the argument of a command line. Used to
+	 * ensure the correct exception type is thrown, and for consistency between
+	 * MOVE and ATTACK.
 	 * 
-	 * @param string
-	 *            the direction string
+	 * @param line
+	 *            the command line
+	 * @param argStart
+	 *            the index of the direction in the line
 	 * 
 	 * @return the compass direction
 	 * @throws CommandException
 	 */
-	private CompassDirection getDirection(String string)
+	private static CompassDirection getDirection(String line, int argStart)
 			throws CommandException {
+		if (line.length() - argStart != 1) {
+			throw new CommandException("invalid direction");
+		}
 		try {
-			return CompassDirection.fromString(string);
+			return CompassDirection.fromChar(Character.toUpperCase(line.charAt(argStart)));
 		} catch (final IllegalArgumentException e) {
 			throw new CommandException("invalid direction");
 		}
 	}
 
 	/**
-	 * Sanitises the given message - there are some characters that we can put
-	 * in the messages that we don't want in other stuff that we sanitise.
+	 * Sanitises the argument of a command line for use in a message - there
+	 * are some characters that we can put in the messages that we don't want
+	 * in other stuff that we sanitise. Like every argument, the message is
+	 * put in upper case.
+	 * 
+	 * This is a single pass over the argument, since every shout is passed on
+	 * to every player and may be long.
 	 * 
-	 * @param s
-	 *            The message to be sanitised
+	 * @param line
+	 *            The command line
+	 * @param argStart
+	 *            The index of the message in the line
 	 * @return The sanitised message
 	 */
-	private static String sanitiseMessage(String s) {
-		return sanitise(s, "[a-zA-Z0-9-_ \\.,:!\\(\\)#]");
+	private static String sanitiseMessage(String line, int argStart) {
+		final StringBuilder sanitised = new StringBuilder(line.length() - argStart);
+
+		for (int i = argStart; i < line.length(); i++) {
+			final char c = line.charAt(i);
+
+			if (c < MESSAGE_CHARACTERS.length) {
+				final char upper = ((c >= 'a') && (c <= 'z')) ? (char) (c - ('a' - 'A')) : c;
+				if (MESSAGE_CHARACTERS[upper]) {
+					sanitised.append(upper);
+				}
+			} else {
+				// A few other characters have an upper case form that is allowed,
+				// e.g. the dotless i
+				final String upper = String.valueOf(c).toUpperCase(Locale.ROOT);
+				for (int j = 0; j < upper.length(); j++) {
+					final char u = upper.charAt(j);
+					if ((u < MESSAGE_CHARACTERS.length) && MESSAGE_CHARACTERS[u]) {
+						sanitised.append(u);
+					}
+				}
+			}
+		}
+
+		return sanitised.toString();
 	}
 
 	/**
-	 * Strip out anything that isn't in the specified regex.
+	 * Works out which characters are allowed in messages
 	 * 
-	 * @param s
-	 *            The string to be sanitised
-	 * @param regex
-	 *            The regex to use for sanitisiation
-	 * @return The sanitised string
+	 * @return true for the allowed characters, indexed by character
 	 */
-	private static String sanitise(String s, String regex) {
-		String rv = "";
-
-		for (int i = 0; i < s.length(); i++) {
-			final String tmp = s.substring(i, i + 1);
-
-			if (tmp.matches(regex)) {
-				rv += tmp;
-			}
+	private static boolean[] messageCharacters() {
+		final boolean allowed[] = new boolean[128];
+		for (char c = 'a'; c <= 'z'; c++) {
+			allowed[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			allowed[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			allowed[c] = true;
+		}
+		for (final char c : "-_ .,:!()#".toCharArray()) {
+			allowed[c] = true;
 		}
+		return allowed;
+	}
 
-		return rv;
+	/**
+	 * Renders the changed tiles as the text of a LOOKDELTA
+	 * 
+	 * @return the text, in a buffer reused by the next LOOKDELTA
+	 */
+	private StringBuilder renderDelta(ViewDelta delta) {
+		this.lookDelta.setLength(0);
+		this.lookDelta.append("LOOKDELTA");
+		for (int tile = 0; tile < delta.size(); tile++) {
+			this.lookDelta.append(' ').append(delta.getColOffset(tile)).append(',')
+					.append(delta.getRowOffset(tile)).append(',').append(delta.getContent(tile));
+		}
+		return this.lookDelta;
 	}
 
 	/**
@@ -345,30 +722,37 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 *            whether or not the message is a response to a command, e.g.
 	 *            "SUCCESS" or "FAIL".
 	 */
-	private final void outputMessage(String message, boolean isResponse) {
+	private final void outputMessage(CharSequence message, boolean isResponse) {
 		// If the user is waiting for a response, buffer the message
 		if (this.waitingForResponse) {
 			if (isResponse) {
 				// Output the response
 				doOutputMessage(message);
-
-				// We can now send everything from the buffer and clear it
-				for (final String line : this.messageBuffer) {
-					doOutputMessage(line);
-				}
-
-				this.messageBuffer.clear();
-
-				// We are no longer waiting for a response
-				this.waitingForResponse = false;
+				outputHeldBack();
 			} else {
 				// Add it to the buffer to be sent when the response has been
 				// sent
-				this.messageBuffer.add(message);
+				this.messageBuffer.add(message.toString());
 			}
 		} else {
 			// The user is not waiting for a response. Send it immediately.
 			doOutputMessage(message);
 		}
 	}
+
+	/**
+	 * Once the response to a command has been output, outputs every message
+	 * held back while waiting for it
+	 */
+	private void outputHeldBack() {
+		// We can now send everything from the buffer and clear it
+		for (final String line : this.messageBuffer) {
+			doOutputMessage(line);
+		}
+
+		this.messageBuffer.clear();
+
+		// We are no longer waiting for a response
+		this.waitingForResponse = false;
+	}
 }
@@ -0,0 +1,81 @@
+package dod;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The count, failures and latencies of one command, recorded by every game
+ * thread at once
+ */
+final class CommandMetrics implements CommandMetricsMXBean {
+	private final String command;
+	private final LatencyRecorder latencies = new LatencyRecorder();
+	private final LongAdder failures = new LongAdder();
+
+	CommandMetrics(String command) {
+		this.command = command;
+	}
+
+	/**
+	 * @return the name of the command, in upper case
+	 */
+	String command() {
+		return this.command;
+	}
+
+	void record(long nanos, boolean failed) {
+		this.latencies.record(nanos);
+		if (failed) {
+			this.failures.increment();
+		}
+	}
+
+	/**
+	 * @return the latencies recorded so far
+	 */
+	LatencyHistogram latencies() {
+		return this.latencies.snapshot();
+	}
+
+	/**
+	 * @return the total time spent on the command, in nanoseconds
+	 */
+	long totalNanos() {
+		return this.latencies.totalNanos();
+	}
+
+	@Override
+	public long getCount() {
+		return latencies().count();
+	}
+
+	@Override
+	public long getFailures() {
+		return this.failures.sum();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		final long count = getCount();
+		return (count == 0) ? 0 : totalNanos() / 1e3 / count;
+	}
+
+	@Override
+	public double getP50Micros() {
+		return latencies().percentile(50) / 1e3;
+	}
+
+	@Override
+	public double getP99Micros() {
+		return latencies().percentile(99) / 1e3;
+	}
+
+	@Override
+	public double getP999Micros() {
+		return latencies().percentile(99.9) / 1e3;
+	}
+
+	@Override
+	public double getMaxMicros() {
+		return latencies().max() / 1e3;
+	}
+}
@@ -0,0 +1,28 @@
+package dod;
+
+/**
+ * How often one command has been carried out and how long it took the game,
+ * as seen over JMX under dod:type=Command
+ */
+public interface CommandMetricsMXBean {
+
+	/**
+	 * @return the number of times the command has been carried out
+	 */
+	long getCount();
+
+	/**
+	 * @return the number of times the response was FAIL
+	 */
+	long getFailures();
+
+	double getMeanMicros();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getP999Micros();
+
+	double getMaxMicros();
+}
@@ -0,0 +1,25 @@
+package dod;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A command read from a client, before it waits for the game, recorded by
+ * Java Flight Recorder when a recording is running
+ */
+@Name("dod.CommandReceived")
+@Label("Command Received")
+@Category({ "Dungeons of Doom", "Commands" })
+@Description("A command read from a client, to be applied by its game")
+final class CommandReceivedEvent extends Event {
+
+	@Label("User")
+	@Description("Identifies the connection, the same as in Command Applied")
+	long userID;
+
+	@Label("Command")
+	String command;
+}
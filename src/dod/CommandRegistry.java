@@ -0,0 +1,155 @@
+package dod;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The commands a CommandLineUser understands. Each command name is given an
+ * opcode when it is registered, and a command line is looked up by hashing its
+ * name in place, ignoring case, so finding the handler allocates nothing.
+ *
+ * Not thread-safe: register every command before the registry is handed to
+ * any users, after which it is only read.
+ */
+public final class CommandRegistry {
+	private static final int NO_OPCODE = -1;
+
+	// Open-addressing table from the hash of a name to its opcode
+	private int slots[] = new int[32];
+
+	// Indexed by opcode
+	private String names[] = new String[16];
+	private CommandHandler handlers[] = new CommandHandler[16];
+	private int size = 0;
+
+	/**
+	 * Creates a registry without any commands
+	 */
+	public CommandRegistry() {
+		Arrays.fill(this.slots, NO_OPCODE);
+	}
+
+	/**
+	 * Adds a command, or replaces the handler of one already registered
+	 *
+	 * @param name
+	 *            the name of the command, matched ignoring case
+	 * @param handler
+	 *            carries out the command
+	 * @return the command's opcode
+	 */
+	public int register(String name, CommandHandler handler) {
+		if ((name.length() == 0) || (name.indexOf(' ') >= 0)) {
+			throw new IllegalArgumentException("invalid command name \"" + name + "\"");
+		}
+
+		final int existing = opcodeOf(name, 0, name.length());
+		if (existing != NO_OPCODE) {
+			this.handlers[existing] = handler;
+			return existing;
+		}
+
+		if (this.size == this.names.length) {
+			this.names = Arrays.copyOf(this.names, this.size * 2);
+			this.handlers = Arrays.copyOf(this.handlers, this.size * 2);
+		}
+		final int opcode = this.size++;
+		this.names[opcode] = name.toUpperCase(Locale.ROOT);
+		this.handlers[opcode] = handler;
+
+		if (this.size * 2 > this.slots.length) {
+			rehash(this.slots.length * 2);
+		} else {
+			insert(opcode);
+		}
+		return opcode;
+	}
+
+	/**
+	 * Finds the command named by part of a line
+	 *
+	 * @return the command's opcode, or -1 if there is no such command
+	 */
+	public int opcodeOf(String line, int start, int end) {
+		final int length = end - start;
+		for (int slot = hash(line, start, end) & (this.slots.length - 1);; slot = (slot + 1)
+				& (this.slots.length - 1)) {
+			final int opcode = this.slots[slot];
+			if (opcode == NO_OPCODE) {
+				return NO_OPCODE;
+			}
+			final String name = this.names[opcode];
+			if ((name.length() == length) && matches(line, start, name)) {
+				return opcode;
+			}
+		}
+	}
+
+	/**
+	 * @return the handler of the command with the opcode
+	 */
+	public CommandHandler handler(int opcode) {
+		return this.handlers[opcode];
+	}
+
+	/**
+	 * @return the name of the command with the opcode, in upper case
+	 */
+	public String name(int opcode) {
+		return this.names[opcode];
+	}
+
+	/**
+	 * @return the number of commands, opcodes run from 0 to one less than this
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private void rehash(int capacity) {
+		this.slots = new int[capacity];
+		Arrays.fill(this.slots, NO_OPCODE);
+		for (int opcode = 0; opcode < this.size; opcode++) {
+			insert(opcode);
+		}
+	}
+
+	private void insert(int opcode) {
+		final String name = this.names[opcode];
+		int slot = hash(name, 0, name.length()) & (this.slots.length - 1);
+		while (this.slots[slot] != NO_OPCODE) {
+			slot = (slot + 1) & (this.slots.length - 1);
+		}
+		this.slots[slot] = opcode;
+	}
+
+	/**
+	 * @return true if the text starting at start is the name, ignoring case
+	 */
+	private static boolean matches(String text, int start, String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (upperCase(text.charAt(start + i)) != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Command names are ASCII, so only ASCII letters need converting
+	 */
+	private static char upperCase(char c) {
+		return ((c >= 'a') && (c <= 'z')) ? (char) (c - ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Hashes the upper case form of the text, without creating it
+	 */
+	private static int hash(String text, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + upperCase(text.charAt(i));
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,410 @@
+package dod;
+
+import dod.game.ViewDelta;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * A client connected to the selector based server. Incoming bytes are framed
+ * into lines and submitted to the game actor, outgoing messages are queued in
+ * a bounded OutboundBuffer and sent once the game actor has finished the
+ * batch of commands that produced them. A client which stops reading is
+ * disconnected once its buffer is full, rather than holding up the game.
+ * Likewise, once the game has no room for more commands the client stops
+ * being read, rather than the selector thread waiting for the game.
+ *
+ * Reading happens on the selector thread and output is produced on the game
+ * thread, so the write buffer is guarded by the connection's monitor.
+ */
+public class DodSelectorConnection extends CommandLineUser implements Flushable {
+
+	// Buffers start small so idle connections are cheap, and grow on demand
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	// Any line or frame longer than this is treated as a misbehaving client
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	private final DodSelectorServer server;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final DodServer dodServer;
+	private final GameLobby lobby;
+	private final GameActor actor;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private final OutboundBuffer output = new OutboundBuffer(OutboundBuffer.DEFAULT_LIMIT);
+	// Once the client switches to binary frames, input is switched by the
+	// selector thread and output by the game thread
+	private BinaryProtocol binaryInput = null;
+	private BinaryProtocol binaryOutput = null;
+	// Set once output is queued until the actor flushes it, only used by the game thread
+	private boolean flushScheduled = false;
+	// Set once the client has been cut off for not reading, only used by the game thread
+	private boolean cutOff = false;
+	// When the commands being framed were read, only used by the selector thread
+	private long receivedAt;
+	// Commands the game had no room for, in order, only used by the selector thread.
+	// The client is not read while there are any.
+	private final ArrayDeque<Runnable> waitingCommands = new ArrayDeque<Runnable>();
+	// Hands the connection back to the selector thread once the game has room
+	private final Runnable roomInGame;
+
+	/**
+	 * Default constructor for a selector connection
+	 * @param server the selector server the connection was accepted by
+	 * @param actor owns the game this connection joined in the lobby
+	 * @param key the selection key the channel is registered with
+	 */
+	DodSelectorConnection(DodSelectorServer server, GameLobby lobby, GameActor actor, DodServer dodServer,
+			SocketChannel channel, SelectionKey key) {
+		super(actor.getGame());
+		this.server = server;
+		this.roomInGame = () -> server.resume(this);
+		this.lobby = lobby;
+		this.actor = actor;
+		this.dodServer = dodServer;
+		this.channel = channel;
+		this.key = key;
+		journalTo(actor.getJournal());
+		submit(this::addPlayer);
+	}
+
+	/**
+	 * Reads whatever the client has sent and submits every complete line to
+	 * the game actor. Called by the selector thread when the channel is readable.
+	 */
+	public void run() {
+		int bytesRead;
+		try {
+			bytesRead = channel.read(readBuffer);
+		} catch (IOException e) {
+			bytesRead = -1;
+		}
+		// Handle case where client quits the game
+		if (bytesRead == -1) {
+			disconnect();
+			return;
+		}
+		dodServer.getMetrics().bytesReceived(bytesRead);
+		receivedAt = System.nanoTime();
+		frameCommands();
+	}
+
+	/**
+	 * Submits the commands the game had no room for, then frames the rest of
+	 * what was read and carries on reading. Called by the selector thread once
+	 * the game actor has room.
+	 */
+	void resume() {
+		Runnable command;
+		while ((command = waitingCommands.peek()) != null) {
+			if (!actor.offer(command, roomInGame)) {
+				return;
+			}
+			waitingCommands.poll();
+		}
+		// Once disconnected, leaving the game was the last command
+		if (!key.isValid()) {
+			return;
+		}
+		frameCommands();
+		if (waitingCommands.isEmpty() && key.isValid()) {
+			setReading(true);
+		}
+	}
+
+	/**
+	 * Submits every complete command in the read buffer to the game actor,
+	 * stopping early if the game has no room for them
+	 */
+	private void frameCommands() {
+		readBuffer.flip();
+		byte[] bytes = readBuffer.array();
+		int commandStart = readBuffer.position();
+		int commandLength;
+		try {
+			while (waitingCommands.isEmpty()
+					&& (commandLength = nextCommand(bytes, commandStart, readBuffer.limit())) > 0) {
+				commandStart += commandLength;
+			}
+		} catch (ProtocolException e) {
+			disconnect();
+			return;
+		}
+		readBuffer.position(commandStart);
+		readBuffer.compact();
+
+		// A full buffer means the current command did not fit, unless the
+		// rest is waiting to be framed
+		if (!readBuffer.hasRemaining() && waitingCommands.isEmpty()) {
+			if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+				disconnect();
+				return;
+			}
+			readBuffer = OutboundBuffer.grow(readBuffer, readBuffer.capacity() * 2);
+		}
+	}
+
+	/**
+	 * Submits the command at the start of the bytes to the game actor, a line
+	 * of text or, once the client has switched, a binary frame
+	 * @return the number of bytes the command took up, or 0 if the whole
+	 * command has not arrived yet
+	 */
+	private int nextCommand(byte[] bytes, int start, int limit) throws ProtocolException {
+		if (binaryInput != null) {
+			int frameLength = BinaryProtocol.frameLength(bytes, start, limit);
+			if (frameLength > 0) {
+				binaryInput.decodeCommand(bytes, start, frameLength);
+				submit(binaryInput.commandOpcode(), binaryInput.commandLine(), binaryInput.commandArgStart());
+			}
+			return frameLength;
+		}
+
+		for (int i = start; i < limit; i++) {
+			if (bytes[i] == '\n') {
+				int lineEnd = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+				final String command = new String(bytes, start, lineEnd - start, StandardCharsets.US_ASCII);
+				submit(command);
+				// Everything the client sends after BINARY is in frames
+				if (BinaryProtocol.isSwitchCommand(command)) {
+					binaryInput = BinaryProtocol.forServer(getCommands());
+				}
+				return i + 1 - start;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Hands a command to the game actor, which records how long it waited
+	 */
+	private void submit(String command) {
+		final long receivedAt = this.receivedAt;
+		commandReceived(command);
+		submit(() -> {
+			dodServer.getMetrics().commandWaited(System.nanoTime() - receivedAt);
+			processCommand(command);
+		});
+	}
+
+	/**
+	 * Hands a command decoded from a frame to the game actor, already looked up
+	 */
+	private void submit(int opcode, String line, int argStart) {
+		final long receivedAt = this.receivedAt;
+		commandReceived(opcode, line);
+		submit(() -> {
+			dodServer.getMetrics().commandWaited(System.nanoTime() - receivedAt);
+			processCommand(opcode, line, argStart);
+		});
+	}
+
+	/**
+	 * Hands a command to the game actor without waiting for it. If the game
+	 * has no room, or earlier commands are already waiting, the command waits
+	 * too and the client is not read until the actor has room.
+	 */
+	private void submit(Runnable command) {
+		if (waitingCommands.isEmpty() && actor.offer(command, roomInGame)) {
+			return;
+		}
+		waitingCommands.add(command);
+		setReading(false);
+	}
+
+	/**
+	 * Starts or stops the selector reading from the client, leaving writing
+	 * as it is. Synchronized as the game thread asks for writes.
+	 */
+	private synchronized void setReading(boolean reading) {
+		if (reading) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		} else {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Writes as much of the pending output as the channel accepts. Called by
+	 * the selector thread when the channel is writable.
+	 */
+	public void write() {
+		boolean failed = false;
+		synchronized (this) {
+			try {
+				// Stop asking for writes once everything has been sent
+				if (writeOutput() == 0) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				failed = true;
+			}
+		}
+		// Not while holding the monitor, which the game thread needs to output
+		if (failed) {
+			disconnect();
+		}
+	}
+
+	/**
+	 * Queues the message in the write buffer, it is sent when the actor
+	 * flushes the connection at the end of the batch. Called from the game thread.
+	 */
+	protected synchronized void doOutputMessage(CharSequence message) {
+		if (!key.isValid()) {
+			return;
+		}
+		afterQueueing(output.put(message, binaryOutput));
+	}
+
+	@Override
+	protected synchronized void doOutputLook(char tiles[]) {
+		if ((binaryOutput == null) || !binaryOutput.encodeLook(tiles)) {
+			super.doOutputLook(tiles);
+			return;
+		}
+		if (key.isValid()) {
+			afterQueueing(output.putFrame(binaryOutput));
+		}
+	}
+
+	@Override
+	protected synchronized void doOutputDelta(ViewDelta delta) {
+		if ((binaryOutput == null) || !binaryOutput.encodeDelta(delta)) {
+			super.doOutputDelta(delta);
+			return;
+		}
+		if (key.isValid()) {
+			afterQueueing(output.putFrame(binaryOutput));
+		}
+	}
+
+	/**
+	 * Has the actor flush the output at the end of the batch, or cuts the
+	 * client off if it did not fit. Called while holding the monitor.
+	 * @param fitted whether the output was queued
+	 */
+	private void afterQueueing(boolean fitted) {
+		if (!fitted) {
+			if (!cutOff) {
+				// Only the selector thread may disconnect, so have it read
+				// the end of the stream and do it
+				cutOff = true;
+				dodServer.slowClientDisconnected();
+				try {
+					channel.shutdownInput();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			return;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			actor.flushAfterBatch(this);
+		}
+	}
+
+	/**
+	 * Sends everything queued during the batch in one write. Only what the
+	 * channel cannot take straight away is left to the selector thread, so
+	 * most batches need neither a wakeup nor a second write. Called by the
+	 * game actor at the end of a batch.
+	 */
+	public synchronized void flush() {
+		flushScheduled = false;
+		if (!key.isValid()) {
+			return;
+		}
+		int backlog;
+		try {
+			backlog = writeOutput();
+		} catch (IOException e) {
+			// Left for the selector thread's write to notice and disconnect
+			backlog = output.backlog();
+		}
+		dodServer.recordOutputBacklog(backlog);
+		if (backlog > 0) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			// The selector thread may be blocked without interest in writing
+			key.selector().wakeup();
+		}
+	}
+
+	/**
+	 * Writes as much output as the channel accepts, while holding the monitor
+	 * @return the number of bytes still waiting to be sent
+	 */
+	private int writeOutput() throws IOException {
+		long sentBefore = output.sent();
+		try {
+			return output.writeTo(channel);
+		} finally {
+			dodServer.getMetrics().bytesSent(output.sent() - sentBefore);
+		}
+	}
+
+	@Override
+	protected long outputQueued() {
+		return output.queued();
+	}
+
+	@Override
+	protected long outputSent() {
+		return output.sent();
+	}
+
+	@Override
+	protected void viewUpdateSkipped(boolean coalesced) {
+		dodServer.viewUpdateSkipped(coalesced);
+	}
+
+	@Override
+	protected void commandProcessed(String command, long nanos, boolean failed) {
+		dodServer.getMetrics().commandProcessed(command, nanos, failed);
+	}
+
+	@Override
+	protected boolean canUseBinaryProtocol() {
+		return true;
+	}
+
+	@Override
+	protected synchronized void useBinaryProtocol() {
+		binaryOutput = BinaryProtocol.forServer(getCommands());
+	}
+
+	/**
+	 * Removes the player from the game and closes the channel
+	 */
+	private void disconnect() {
+		if (!key.isValid()) {
+			return;
+		}
+		commandReceived("ENDTURN");
+		submit(() -> {
+			processCommand("ENDTURN");
+			removePlayer();
+		});
+		lobby.leave(actor);
+		// While holding the monitor, so the game thread's flush never sees
+		// the key cancelled after checking it
+		synchronized (this) {
+			key.cancel();
+		}
+		output.close();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		dodServer.playerLeftMessage();
+		dodServer.incrementNumberOfPlayers(-1);
+	}
+}
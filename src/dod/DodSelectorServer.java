@@ -0,0 +1,133 @@
+package dod;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking front end for the server. A single selector thread accepts
+ * connections and does the reading and writing for every client, instead of
+ * creating a thread for each connection. Commands are applied by the actor of
+ * the game each connection joined. The selector thread never waits for a
+ * game: a connection whose game has no room for its commands stops being
+ * read until the game actor hands it back.
+ */
+public class DodSelectorServer {
+
+	private final GameLobby lobby;
+	private final DodServer dodServer;
+	// Connections whose games have room for their commands again, handed over by the game actors
+	private final Queue<DodSelectorConnection> resumed = new ConcurrentLinkedQueue<DodSelectorConnection>();
+	private Selector selector;
+
+	/**
+	 * Default constructor for the selector based server
+	 * @param lobby chooses the game each connection will play
+	 * @param dodServer the server used to report players joining and leaving
+	 */
+	DodSelectorServer(GameLobby lobby, DodServer dodServer) {
+		this.lobby = lobby;
+		this.dodServer = dodServer;
+	}
+
+	/**
+	 * Listens on the given port and services clients until the server stops listening
+	 * @param portNumber the port to listen on
+	 * @throws IOException if the server socket could not be opened
+	 */
+	public void listen(int portNumber) throws IOException {
+		try (Selector selector = Selector.open();
+			 ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+			this.selector = selector;
+			serverChannel.bind(new InetSocketAddress(portNumber));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			while (DodServer.listening) {
+				selector.select();
+				resumeConnections();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(selector, serverChannel);
+						continue;
+					}
+					DodSelectorConnection connection = (DodSelectorConnection) key.attachment();
+					if (key.isReadable()) {
+						connection.run();
+					}
+					if (key.isValid() && key.isWritable()) {
+						connection.write();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Has the selector thread carry on with a connection once its game has
+	 * room for the commands waiting. Called by the connection's game actor.
+	 */
+	void resume(DodSelectorConnection connection) {
+		resumed.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Submits the waiting commands of every connection handed back, and
+	 * carries on reading them
+	 */
+	private void resumeConnections() {
+		DodSelectorConnection connection;
+		while ((connection = resumed.poll()) != null) {
+			connection.resume();
+		}
+	}
+
+	/**
+	 * Accepts a pending connection and adds the new player to the game
+	 */
+	private void accept(Selector selector, ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		// Output is already coalesced into one write per batch, so Nagle's
+		// algorithm would only delay it waiting for the client's ACK
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		GameActor actor = lobby.join();
+		if (actor == null) {
+			// A line this short fits in the socket's buffer, so one write sends it
+			try (SocketChannel rejected = channel) {
+				rejected.write(ByteBuffer.wrap((DodServer.GAMES_FULL + System.lineSeparator())
+						.getBytes(StandardCharsets.US_ASCII)));
+			} catch (IOException e) {
+				// The client has gone anyway
+			}
+			dodServer.gamesFullMessage();
+			return;
+		}
+		// The key has to exist before the player is added, since adding the
+		// player sends the GOLD message
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new DodSelectorConnection(this, lobby, actor, dodServer, channel, key));
+		System.out.println("Made a connection");
+		dodServer.playerJoinedMessage();
+		dodServer.incrementNumberOfPlayers(1);
+	}
+}
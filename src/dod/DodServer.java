@@ -1,11 +1,18 @@
 package dod;
 
-import dod.game.GameLogic;
+import dod.game.Player;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  *  Class to run the dungeons of Doom Server
@@ -14,17 +21,39 @@ public class DodServer implements Runnable {
 
 	public static int numberOfPlayers = 0;
 	public static boolean listening = true;
-	private static int portNumber;
-	private static String mapChoice;
+	// Connection modes, chosen by the optional third command line argument
+	public static final String THREAD_MODE = "threads";
+	public static final String SELECTOR_MODE = "nio";
+	public static final String VIRTUAL_THREAD_MODE = "virtual";
+	private final int portNumber;
+	private final String mapChoice;
+	private final String connectionMode;
+	private final int lookDistance;
+	private final int metricsPort;
+	private final String journalDirectory;
+	// Sent to a client turned away because every game is full
+	static final String GAMES_FULL = "FAIL every game is full";
+	// How many commands may be waiting for a game before connections block, or stop being read
+	private static final int COMMAND_QUEUE_CAPACITY = 4096;
+	// Published over JMX, and over HTTP if given a metrics port
+	private final ServerMetrics metrics;
 
 	/**
 	 *  Main method ran when the user runs DodServer from command line
-	 * allows them to specify where the server is run by changing the Port and Hostname
+	 * allows them to specify where the server is run by changing the Port and Hostname,
+	 * optionally how connections are serviced ("threads", "virtual" or "nio"),
+	 * how far players can see without a lantern, the port to serve metrics on
+	 * and the directory to journal every game's commands in
 	 */
 	public static void main(String[] args) {
-		portNumber = Integer.parseInt(args[0]);
-		mapChoice = args[1];
-		new Thread(new DodServer(portNumber, mapChoice)).start();
+		int portNumber = Integer.parseInt(args[0]);
+		String mapChoice = args[1];
+		String connectionMode = (args.length > 2) ? args[2] : THREAD_MODE;
+		int lookDistance = (args.length > 3) ? Integer.parseInt(args[3]) : Player.DEFAULT_LOOK_DISTANCE;
+		int metricsPort = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+		String journalDirectory = (args.length > 5) ? args[5] : null;
+		new Thread(new DodServer(portNumber, mapChoice, connectionMode, lookDistance, metricsPort,
+				journalDirectory)).start();
 	}
 
 	/**
@@ -33,36 +62,199 @@ public class DodServer implements Runnable {
 	 * @param mapChoice
 	 */
 	public DodServer(int portNumber, String mapChoice) {
+		this(portNumber, mapChoice, THREAD_MODE);
+	}
+
+	/**
+	 * Constructor for Dungeons of Doom Server using the given connection mode
+	 * @param portNumber
+	 * @param mapChoice
+	 * @param connectionMode one of THREAD_MODE, VIRTUAL_THREAD_MODE or SELECTOR_MODE
+	 */
+	public DodServer(int portNumber, String mapChoice, String connectionMode) {
+		this(portNumber, mapChoice, connectionMode, Player.DEFAULT_LOOK_DISTANCE);
+	}
+
+	/**
+	 * Constructor for Dungeons of Doom Server where players see as far as given
+	 * @param portNumber
+	 * @param mapChoice
+	 * @param connectionMode one of THREAD_MODE, VIRTUAL_THREAD_MODE or SELECTOR_MODE
+	 * @param lookDistance how far players can see without a lantern
+	 */
+	public DodServer(int portNumber, String mapChoice, String connectionMode, int lookDistance) {
+		this(portNumber, mapChoice, connectionMode, lookDistance, 0);
+	}
+
+	/**
+	 * Constructor for Dungeons of Doom Server which serves its metrics over HTTP
+	 * @param portNumber
+	 * @param mapChoice
+	 * @param connectionMode one of THREAD_MODE, VIRTUAL_THREAD_MODE or SELECTOR_MODE
+	 * @param lookDistance how far players can see without a lantern
+	 * @param metricsPort the port to serve metrics on, on the loopback interface, or 0 for none
+	 */
+	public DodServer(int portNumber, String mapChoice, String connectionMode, int lookDistance, int metricsPort) {
+		this(portNumber, mapChoice, connectionMode, lookDistance, metricsPort, null);
+	}
+
+	/**
+	 * Constructor for Dungeons of Doom Server which journals every game, see JournalReplayer
+	 * @param portNumber
+	 * @param mapChoice
+	 * @param connectionMode one of THREAD_MODE, VIRTUAL_THREAD_MODE or SELECTOR_MODE
+	 * @param lookDistance how far players can see without a lantern
+	 * @param metricsPort the port to serve metrics on, on the loopback interface, or 0 for none
+	 * @param journalDirectory the directory to write each game's CommandJournal in, or null for none
+	 */
+	public DodServer(int portNumber, String mapChoice, String connectionMode, int lookDistance, int metricsPort,
+			String journalDirectory) {
+		if (lookDistance < 0) {
+			throw new IllegalArgumentException("Look distance must not be negative: " + lookDistance);
+		}
+		if (!connectionMode.equals(THREAD_MODE) && !connectionMode.equals(VIRTUAL_THREAD_MODE)
+				&& !connectionMode.equals(SELECTOR_MODE)) {
+			throw new IllegalArgumentException("Unknown connection mode: " + connectionMode);
+		}
 		this.portNumber = portNumber;
 		this.mapChoice = mapChoice;
+		this.connectionMode = connectionMode;
+		this.lookDistance = lookDistance;
+		this.metricsPort = metricsPort;
+		this.journalDirectory = journalDirectory;
+		this.metrics = new ServerMetrics(portNumber);
 	}
 
 	public void run() {
-		// Create an instance of GameLogic, which effectively starts the game
-		GameLogic game = null;
+		// Create a game for every map given, separated by commas, which effectively starts the games
+		String[] mapFiles = mapChoice.split(",");
+		for (int i = 0; i < mapFiles.length; i++) {
+			mapFiles[i] = "maps/" + mapFiles[i];
+		}
+		GameLobby lobby = null;
 		try {
-			game = new GameLogic("maps/" + mapChoice);
+			lobby = new GameLobby(mapFiles, COMMAND_QUEUE_CAPACITY, lookDistance,
+					(journalDirectory == null) ? null : new File(journalDirectory));
 		} catch (FileNotFoundException | ParseException e) {
 			System.out.println("Map: " + mapChoice + " not found");
 			System.exit(1);
+		} catch (IOException e) {
+			System.out.println("Could not create journals in " + journalDirectory + ": " + e.getMessage());
+			System.exit(1);
+		}
+		if (journalDirectory != null) {
+			closeJournalsOnExit(lobby);
+		}
+		metrics.setLobby(lobby);
+		metrics.registerMBeans();
+		String metricsLocation = "JMX";
+		if (metricsPort > 0) {
+			try {
+				metrics.startHttpServer(metricsPort);
+				metricsLocation += " and http://localhost:" + metricsPort + "/metrics";
+			} catch (IOException e) {
+				System.err.println("Could not serve metrics on port " + metricsPort);
+			}
 		}
 		// Start listening on a port and wait for connections
-		try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
-			System.out.println("Server running, details:" + "\nPort Number: " + portNumber + "\nMap: " + mapChoice);
+		try {
+			System.out.println("Server running, details:" + "\nPort Number: " + portNumber + "\nMap: " + mapChoice
+					+ "\nGames: " + lobby.getNumberOfGames() + "\nMode: " + connectionMode
+					+ "\nLook distance: " + lookDistance + "\nMetrics: " + metricsLocation
+					+ ((journalDirectory == null) ? "" : "\nJournals: " + journalDirectory));
 			System.out.println("Waiting for connections...");
+			if (connectionMode.equals(SELECTOR_MODE)) {
+				new DodSelectorServer(lobby, this).listen(portNumber);
+			} else if (connectionMode.equals(VIRTUAL_THREAD_MODE)) {
+				listenWithThreads(lobby, newVirtualThreadExecutor());
+			} else {
+				listenWithThreads(lobby, null);
+			}
+		} catch (IOException e) {
+			// Catch any errors where client was unable to connect
+			System.err.println("Could not listen on port " + portNumber);
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Accepts connections and reads each one on its own thread. Output is sent
+	 * by the executor in virtual thread mode, which only keeps a thread while a
+	 * write is in progress, otherwise by a small pool of writers shared by
+	 * every connection.
+	 * @param executor runs each connection, or null to start a new platform thread for each
+	 */
+	private void listenWithThreads(GameLobby lobby, ExecutorService executor) throws IOException {
+		Executor writers = executor;
+		if (executor == null) {
+			// Writes only wait for a client which has stopped reading, until it is cut off
+			int writerCount = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+			writers = Executors.newFixedThreadPool(writerCount, runnable -> new Thread(runnable, "connection-writer"));
+		}
+		try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
 			while (listening) {
 				// For each client that connects make a separate thread
-				new Thread(new DodServerThread(game, this, serverSocket.accept())).start();
+				Socket socket = serverSocket.accept();
+				GameActor actor = lobby.join();
+				if (actor == null) {
+					turnAway(socket);
+					continue;
+				}
+				DodServerThread connection = new DodServerThread(lobby, actor, this, socket, writers);
+				if (executor == null) {
+					new Thread(connection).start();
+				} else {
+					executor.execute(connection);
+				}
 				// Print some helpful information to the server
 				System.out.println("Made a connection");
 				playerJoinedMessage();
 				// Increment the number of players by one
 				incrementNumberOfPlayers(1);
 			}
+		}
+	}
+
+	/**
+	 * Tells a client that every game is full and closes the connection
+	 */
+	private void turnAway(Socket socket) {
+		try (Socket rejected = socket) {
+			rejected.getOutputStream().write((GAMES_FULL + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
 		} catch (IOException e) {
-			// Catch any errors where client was unable to connect
-			System.err.println("Could not listen on port " + portNumber);
+			// The client has gone anyway
+		}
+		gamesFullMessage();
+	}
+
+	/**
+	 * Writes out whatever the journals hold when the server is stopped
+	 */
+	private static void closeJournalsOnExit(GameLobby lobby) {
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (GameActor game : lobby.getGames()) {
+				try {
+					game.getJournal().close();
+				} catch (IOException e) {
+					System.err.println("Could not write a journal: " + e.getMessage());
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per connection. Looked up
+	 * reflectively so the server still compiles and runs on older Java versions
+	 * in the other connection modes.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads need Java 21 or newer");
 			System.exit(-1);
+			return null;
 		}
 	}
 
@@ -70,10 +262,69 @@ public class DodServer implements Runnable {
 	 * Mutator to alter the numberOfPlayers variable
 	 */
 	public void incrementNumberOfPlayers(int x) {
-		numberOfPlayers = numberOfPlayers + x;
+		metrics.connectionsChanged(x);
+		numberOfPlayers = metrics.getActiveConnections();
 		System.out.println("No.Players: " + numberOfPlayers);
 	}
 
+	/**
+	 * Records a view update not sent to a client, see CommandLineUser.viewUpdateSkipped
+	 * @param coalesced true if a LOOKDELTA was replaced by a CHANGE, false if a CHANGE was dropped
+	 */
+	public void viewUpdateSkipped(boolean coalesced) {
+		metrics.viewUpdateSkipped(coalesced);
+	}
+
+	/**
+	 * Records how much output a connection had waiting at the end of a batch
+	 */
+	public void recordOutputBacklog(int bytes) {
+		metrics.recordOutputBacklog(bytes);
+	}
+
+	/**
+	 * Records a client being disconnected for not reading its output
+	 */
+	public void slowClientDisconnected() {
+		metrics.slowClientDisconnected();
+		System.out.println("Disconnected a client which stopped reading");
+	}
+
+	/**
+	 * @return the number of CHANGE messages dropped as the client was yet to LOOK after the last one
+	 */
+	public long getChangesDropped() {
+		return metrics.getChangesDropped();
+	}
+
+	/**
+	 * @return the number of LOOKDELTA messages replaced by, or dropped in favour of, a CHANGE
+	 */
+	public long getDeltasCoalesced() {
+		return metrics.getDeltasCoalesced();
+	}
+
+	/**
+	 * @return the number of clients disconnected for not reading their output
+	 */
+	public long getSlowClientsDisconnected() {
+		return metrics.getSlowClientsDisconnected();
+	}
+
+	/**
+	 * @return the most output, in bytes, any connection has had waiting to be sent
+	 */
+	public long getPeakOutputBacklog() {
+		return metrics.getPeakOutputBacklog();
+	}
+
+	/**
+	 * @return the metrics connections record what they do in
+	 */
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+
 	/**
 	 *  Method to print that a player has left the game
 	 */
@@ -87,4 +338,11 @@ public class DodServer implements Runnable {
 	public void playerJoinedMessage() {
 		System.out.println("Player has joined");
 	}
+
+	/**
+	 * Method to print that a connection was turned away, every game being full
+	 */
+	public void gamesFullMessage() {
+		System.out.println("Turned a connection away, every game is full");
+	}
 }
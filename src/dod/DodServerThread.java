@@ -1,32 +1,70 @@
 package dod;
 
-import dod.game.GameLogic;
+import dod.game.ViewDelta;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.Flushable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *  Class to create a new thread each time there is a new connection to the server
+ *
+ *  Output is queued until the game actor has finished the batch of commands
+ *  that produced it, then sent in a single write by a writer shared with the
+ *  other connections, so the game never waits for a client. A client which
+ *  stops reading altogether is disconnected once its queue is full, which also
+ *  frees a writer stuck sending to it.
  */
-public class DodServerThread extends CommandLineUser {
+public class DodServerThread extends CommandLineUser implements Flushable {
 
 	private Socket socket = null;
-	private PrintWriter out;
-	private BufferedReader in;
+	private OutputStream socketOut;
+	private InputStream in;
+	private final OutboundBuffer output = new OutboundBuffer(OutboundBuffer.DEFAULT_LIMIT);
+	// Set once output is queued until the actor flushes it, only used by the game thread
+	private boolean flushScheduled = false;
+	// Set once the client has been cut off for not reading, only used by the game thread
+	private boolean cutOff = false;
+	// Sends the output of this and other connections, at most one write per connection at a time
+	private final Executor writers;
+	private final AtomicBoolean writing = new AtomicBoolean(false);
+	// Handed back to the output once written, only used by the write in progress
+	private ByteBuffer written = ByteBuffer.allocate(0);
+	// Once the client switches to binary frames, each direction is switched
+	// by the thread using it
+	private BinaryProtocol binaryOutput = null;
+	private BinaryProtocol binaryInput = null;
+	// Grows to fit the longest line read so far
+	private byte[] lineBuffer = new byte[128];
 	private DodServer dodServer;
+	private final GameLobby lobby;
+	// Every command is handed to the actor, which applies it on the game thread
+	private final GameActor actor;
 
 	/**
-	 * Default constructor for the Server Thread
+	 * Constructor for a connection playing the game owned by the given actor
+	 * @param actor owns the game this connection joined in the lobby
+	 * @param writers sends the output once the game flushes it
 	 */
-	DodServerThread(GameLogic game, DodServer dodServer, Socket socket) {
-		super(game);
+	DodServerThread(GameLobby lobby, GameActor actor, DodServer dodServer, Socket socket, Executor writers) {
+		super(actor.getGame());
 		this.socket = socket;
+		this.writers = writers;
 		this.dodServer = dodServer;
+		this.lobby = lobby;
+		this.actor = actor;
 		setUpIOStreams();
-		addPlayer();
+		journalTo(actor.getJournal());
+		actor.submit(this::addPlayer);
 	}
 
 	/**
@@ -34,8 +72,11 @@ public class DodServerThread extends CommandLineUser {
 	 */
 	private void setUpIOStreams() {
 		try {
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			// Output is already coalesced into one write per batch, so Nagle's
+			// algorithm would only delay it waiting for the client's ACK
+			socket.setTcpNoDelay(true);
+			socketOut = socket.getOutputStream();
+			in = new BufferedInputStream(new CountingInputStream(socket.getInputStream(), dodServer.getMetrics()));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -48,28 +89,245 @@ public class DodServerThread extends CommandLineUser {
 		boolean listening = true;
 		// Listen for input from the client
 		while (listening) {
+			String command = null;
+			boolean framed = false;
 			try {
-				String command = in.readLine();
-				// Handle case where client quits the game
-				if (command == null) {
-                    processCommand("ENDTURN");
-					this.removePlayer();
-					dodServer.playerLeftMessage();
-					dodServer.incrementNumberOfPlayers(-1);
-					listening = false;
-					continue;
-				} processCommand(command);
+				if (binaryInput != null) {
+					framed = binaryInput.readCommandFrom(in);
+				} else {
+					command = readLine();
+				}
 			} catch (IOException e) {
-				// Catch any errors
+				// A broken connection, or a malformed frame, ends the
+				// connection like the client quitting
 				e.printStackTrace();
 			}
+			if (framed) {
+				submit(binaryInput.commandOpcode(), binaryInput.commandLine(), binaryInput.commandArgStart());
+				continue;
+			}
+			// Handle case where client quits the game
+			if (command == null) {
+				commandReceived("ENDTURN");
+				actor.submit(() -> {
+					processCommand("ENDTURN");
+					this.removePlayer();
+				});
+				lobby.leave(actor);
+				output.close();
+				dodServer.playerLeftMessage();
+				dodServer.incrementNumberOfPlayers(-1);
+				listening = false;
+				closeSocket();
+				continue;
+			}
+			submit(command);
+			// Everything the client sends after BINARY is in frames
+			if (BinaryProtocol.isSwitchCommand(command)) {
+				binaryInput = BinaryProtocol.forServer(getCommands());
+			}
+		}
+	}
+
+	/**
+	 * Hands a line of text to the game actor, which records how long it waited
+	 */
+	private void submit(String command) {
+		final long receivedAt = System.nanoTime();
+		commandReceived(command);
+		actor.submit(() -> {
+			dodServer.getMetrics().commandWaited(System.nanoTime() - receivedAt);
+			processCommand(command);
+		});
+	}
+
+	/**
+	 * Hands a command decoded from a frame to the game actor, already looked up
+	 */
+	private void submit(int opcode, String line, int argStart) {
+		final long receivedAt = System.nanoTime();
+		commandReceived(opcode, line);
+		actor.submit(() -> {
+			dodServer.getMetrics().commandWaited(System.nanoTime() - receivedAt);
+			processCommand(opcode, line, argStart);
+		});
+	}
+
+	/**
+	 * Reads the next line of text
+	 * @return the line, or null once the client has gone
+	 */
+	private String readLine() throws IOException {
+		// Lines are taken from the buffered stream a byte at a time, so the
+		// frames following BINARY are left in the stream
+		int length = 0;
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (length == lineBuffer.length) {
+				lineBuffer = Arrays.copyOf(lineBuffer, length * 2);
+			}
+			lineBuffer[length++] = (byte) b;
+		}
+		if (b == -1 && length == 0) {
+			return null;
+		}
+		if (length > 0 && lineBuffer[length - 1] == '\r') {
+			length--;
+		}
+		// Decoded as the selector connections do, so both modes see the same command
+		return new String(lineBuffer, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	@Override
+	protected boolean canUseBinaryProtocol() {
+		return true;
+	}
+
+	@Override
+	protected void useBinaryProtocol() {
+		binaryOutput = BinaryProtocol.forServer(getCommands());
+	}
+
+	/**
+	 * Sends the output queued for the client, then gives the writer back.
+	 * Runs on one of the writers, so only it waits for a slow client.
+	 */
+	private void writeOutput() {
+		do {
+			try {
+				ByteBuffer next;
+				while ((next = output.takeOutput(written)) != null) {
+					dodServer.getMetrics().bytesSent(next.remaining());
+					socketOut.write(next.array(), next.position(), next.remaining());
+					next.position(next.limit());
+					written = next;
+				}
+			} catch (IOException e) {
+				// Closing the socket lets the reader notice the client has gone
+				output.close();
+				closeSocket();
+			}
+			writing.set(false);
+			// The game may have flushed again after the last output was taken
+		} while (output.outputReady() && writing.compareAndSet(false, true));
+	}
+
+	/**
+	 * Queues the output of the game for the client, it is sent when the actor
+	 * flushes the connection at the end of the batch. Called from the game thread.
+	 */
+	protected void doOutputMessage(CharSequence message) {
+		afterQueueing(output.put(message, binaryOutput));
+	}
+
+	@Override
+	protected void doOutputLook(char tiles[]) {
+		if ((binaryOutput == null) || !binaryOutput.encodeLook(tiles)) {
+			super.doOutputLook(tiles);
+			return;
+		}
+		afterQueueing(output.putFrame(binaryOutput));
+	}
+
+	@Override
+	protected void doOutputDelta(ViewDelta delta) {
+		if ((binaryOutput == null) || !binaryOutput.encodeDelta(delta)) {
+			super.doOutputDelta(delta);
+			return;
+		}
+		afterQueueing(output.putFrame(binaryOutput));
+	}
+
+	/**
+	 * Has the actor flush the output at the end of the batch, or cuts the
+	 * client off if it did not fit
+	 * @param fitted whether the output was queued
+	 */
+	private void afterQueueing(boolean fitted) {
+		if (!fitted) {
+			if (!cutOff) {
+				// The reader then removes the player as if the client had quit
+				cutOff = true;
+				dodServer.slowClientDisconnected();
+				closeSocket();
+			}
+			return;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			actor.flushAfterBatch(this);
+		}
+	}
+
+	/**
+	 * Hands everything queued during the batch to a writer, unless one is
+	 * already sending this connection's output. Called by the game actor at
+	 * the end of a batch.
+	 */
+	public void flush() {
+		flushScheduled = false;
+		dodServer.recordOutputBacklog(output.backlog());
+		output.requestFlush();
+		if (writing.compareAndSet(false, true)) {
+			writers.execute(this::writeOutput);
+		}
+	}
+
+	@Override
+	protected long outputQueued() {
+		return output.queued();
+	}
+
+	@Override
+	protected long outputSent() {
+		return output.sent();
+	}
+
+	@Override
+	protected void viewUpdateSkipped(boolean coalesced) {
+		dodServer.viewUpdateSkipped(coalesced);
+	}
+
+	@Override
+	protected void commandProcessed(String command, long nanos, boolean failed) {
+		dodServer.getMetrics().commandProcessed(command, nanos, failed);
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Prints the output of the game to the terminal
+	 * Counts the bytes read from the client
 	 */
-	protected void doOutputMessage(String message) {
-		out.println(message);
+	private static final class CountingInputStream extends FilterInputStream {
+		private final ServerMetrics metrics;
+
+		CountingInputStream(InputStream in, ServerMetrics metrics) {
+			super(in);
+			this.metrics = metrics;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				metrics.bytesReceived(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = super.read(bytes, offset, length);
+			if (read > 0) {
+				metrics.bytesReceived(read);
+			}
+			return read;
+		}
 	}
 }
@@ -0,0 +1,191 @@
+package dod;
+
+import dod.game.GameLogic;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns a game and is the only thing allowed to touch it. Connections submit
+ * their commands to the actor, which applies them one at a time and in the
+ * order they arrived on the executor it was given, so GameLogic never sees
+ * two threads at once.
+ *
+ * Output produced while applying a batch of commands is held back by the
+ * connections and flushed once the batch is done, so each connection sends
+ * everything from one batch in a single write.
+ */
+public class GameActor {
+
+	// How many commands are applied before giving the executor back
+	private static final int BATCH_SIZE = 64;
+
+	private final GameLogic game;
+	private final Executor executor;
+	private final BlockingQueue<Runnable> commands;
+	// Set while a drain of the queue is scheduled or running
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	// Told once a batch has been applied, for those whose offer did not fit
+	private final Queue<Runnable> roomListeners = new ConcurrentLinkedQueue<Runnable>();
+	// Connections with output waiting to be flushed, only used by the drain
+	private final List<Flushable> pendingFlushes = new ArrayList<Flushable>();
+	// Records every command applied, or null
+	private final CommandJournal journal;
+
+	/**
+	 * Default constructor for a game actor
+	 * @param game the game this actor owns
+	 * @param executor runs the actor, commands are never run concurrently on it
+	 * @param capacity how many commands may be waiting before submit blocks, or offer fails
+	 */
+	public GameActor(GameLogic game, Executor executor, int capacity) {
+		this(game, executor, capacity, null);
+	}
+
+	/**
+	 * Constructor for a game actor whose game is journaled
+	 * @param game the game this actor owns
+	 * @param executor runs the actor, commands are never run concurrently on it
+	 * @param capacity how many commands may be waiting before submit blocks, or offer fails
+	 * @param journal records the commands applied to the game, or null
+	 */
+	public GameActor(GameLogic game, Executor executor, int capacity, CommandJournal journal) {
+		this.game = game;
+		this.executor = executor;
+		this.commands = new ArrayBlockingQueue<Runnable>(capacity);
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the game owned by this actor, only to be used by submitted commands
+	 */
+	public GameLogic getGame() {
+		return game;
+	}
+
+	/**
+	 * @return the journal of the game, or null if it is not journaled
+	 */
+	public CommandJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * @return the number of commands waiting to be applied
+	 */
+	public int getQueueDepth() {
+		return commands.size();
+	}
+
+	/**
+	 * Queues a command to be applied to the game. Blocks while the queue is
+	 * full, which slows down clients sending faster than the game can keep up.
+	 * @param command the command to apply
+	 */
+	public void submit(Runnable command) {
+		try {
+			commands.put(command);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		schedule();
+	}
+
+	/**
+	 * Queues a command to be applied to the game if there is room, for threads
+	 * which must never wait for the game, e.g. the selector thread
+	 * @param command the command to apply
+	 * @param whenRoom run once on the actor after the next batch, if the command did not fit
+	 * @return false if the queue was full, and the command was not queued
+	 */
+	public boolean offer(Runnable command, Runnable whenRoom) {
+		if (commands.offer(command)) {
+			schedule();
+			return true;
+		}
+		roomListeners.add(whenRoom);
+		// The queue may have emptied before the listener was added
+		schedule();
+		return false;
+	}
+
+	/**
+	 * Arranges for a connection's output to be flushed once the current batch
+	 * of commands has been applied. Only to be called by submitted commands,
+	 * and at most once per batch for each connection.
+	 * @param connection the connection to flush
+	 */
+	public void flushAfterBatch(Flushable connection) {
+		pendingFlushes.add(connection);
+	}
+
+	/**
+	 * Makes sure a drain of the queue is scheduled on the executor
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * Applies queued commands in order, up to one batch at a time
+	 */
+	private void drain() {
+		Runnable command;
+		int applied = 0;
+		while (applied < BATCH_SIZE && (command = commands.poll()) != null) {
+			try {
+				command.run();
+			} catch (RuntimeException e) {
+				// One bad command must not stop the game for everyone
+				e.printStackTrace();
+			}
+			applied++;
+		}
+		flushPending();
+		notifyRoom();
+		scheduled.set(false);
+		// Commands or listeners may have arrived after the last poll
+		if (!commands.isEmpty() || !roomListeners.isEmpty()) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Tells everyone waiting for room that the batch has made some
+	 */
+	private void notifyRoom() {
+		Runnable listener;
+		while ((listener = roomListeners.poll()) != null) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Flushes every connection which produced output during the batch
+	 */
+	private void flushPending() {
+		for (int i = 0; i < pendingFlushes.size(); i++) {
+			try {
+				pendingFlushes.get(i).flush();
+			} catch (IOException e) {
+				// The connection's reader notices it has gone and removes the player
+			}
+		}
+		pendingFlushes.clear();
+	}
+}
@@ -0,0 +1,138 @@
+package dod;
+
+import dod.game.GameLogic;
+import dod.game.Player;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hosts several independent games in one server and decides which game each
+ * new connection joins. Every game has its own map and turn order, and is
+ * pinned to one of a fixed set of worker threads, one per core, so separate
+ * games run in parallel while each game still only sees a single thread.
+ */
+public class GameLobby {
+
+	private final List<GameActor> games = new ArrayList<GameActor>();
+	// The number of connections currently playing each game, same order as games
+	private final List<AtomicInteger> connections = new ArrayList<AtomicInteger>();
+
+	/**
+	 * Creates a game for each of the given maps
+	 * @param mapFiles the map file for each game, the same map may be given more than once
+	 * @param queueCapacity how many commands each game may have waiting
+	 * @throws FileNotFoundException
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	public GameLobby(String[] mapFiles, int queueCapacity) throws FileNotFoundException, ParseException, IOException {
+		this(mapFiles, queueCapacity, Player.DEFAULT_LOOK_DISTANCE);
+	}
+
+	/**
+	 * Creates a game for each of the given maps, where players see as far as given
+	 * @param mapFiles the map file for each game, the same map may be given more than once
+	 * @param queueCapacity how many commands each game may have waiting
+	 * @param lookDistance how far players can see without a lantern
+	 * @throws FileNotFoundException
+	 * @throws ParseException
+	 * @throws IOException
+	 */
+	public GameLobby(String[] mapFiles, int queueCapacity, int lookDistance)
+			throws FileNotFoundException, ParseException, IOException {
+		this(mapFiles, queueCapacity, lookDistance, null);
+	}
+
+	/**
+	 * Creates a game for each of the given maps, journaling every game
+	 * @param mapFiles the map file for each game, the same map may be given more than once
+	 * @param queueCapacity how many commands each game may have waiting
+	 * @param lookDistance how far players can see without a lantern
+	 * @param journalDirectory where to write each game's CommandJournal, as game-N.dodj, or null for none
+	 * @throws FileNotFoundException
+	 * @throws ParseException
+	 * @throws IOException if a journal cannot be created
+	 */
+	public GameLobby(String[] mapFiles, int queueCapacity, int lookDistance, File journalDirectory)
+			throws FileNotFoundException, ParseException, IOException {
+		int workerCount = Math.min(mapFiles.length, Runtime.getRuntime().availableProcessors());
+		ExecutorService[] workers = new ExecutorService[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			final String name = "game-worker-" + i;
+			workers[i] = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name));
+		}
+		if (journalDirectory != null) {
+			journalDirectory.mkdirs();
+		}
+		for (int i = 0; i < mapFiles.length; i++) {
+			GameLogic game = new GameLogic(mapFiles[i], lookDistance);
+			CommandJournal journal = null;
+			if (journalDirectory != null) {
+				journal = new CommandJournal(new File(journalDirectory, "game-" + i + ".dodj"), mapFiles[i],
+						lookDistance, game.getSeed());
+			}
+			games.add(new GameActor(game, workers[i % workerCount], queueCapacity, journal));
+			connections.add(new AtomicInteger());
+		}
+	}
+
+	/**
+	 * Chooses a game for a new connection, the one with the fewest connections
+	 * of those with a free tile for the player
+	 * @return the actor owning the chosen game, or null if every game is full
+	 */
+	public synchronized GameActor join() {
+		int chosen = -1;
+		for (int i = 0; i < games.size(); i++) {
+			int playing = connections.get(i).get();
+			if (playing < games.get(i).getGame().getMaxPlayers()
+					&& (chosen < 0 || playing < connections.get(chosen).get())) {
+				chosen = i;
+			}
+		}
+		if (chosen < 0) {
+			return null;
+		}
+		connections.get(chosen).incrementAndGet();
+		return games.get(chosen);
+	}
+
+	/**
+	 * Records that a connection has left a game
+	 * @param game the actor returned by join for that connection
+	 */
+	public void leave(GameActor game) {
+		connections.get(games.indexOf(game)).decrementAndGet();
+	}
+
+	/**
+	 * @return the actor of every game, in the order the maps were given
+	 */
+	public List<GameActor> getGames() {
+		return Collections.unmodifiableList(games);
+	}
+
+	/**
+	 * @param game the index of the game, in the order the maps were given
+	 * @return the number of connections playing the game
+	 */
+	public int getConnections(int game) {
+		return connections.get(game).get();
+	}
+
+	/**
+	 * @return the number of games hosted by this lobby
+	 */
+	public int getNumberOfGames() {
+		return games.size();
+	}
+}
@@ -55,7 +55,7 @@ public class HumanUser extends CommandLineUser {
 	/**
 	 * Simply prints the message to the terminal 
 	 */
-	protected void doOutputMessage(String message) {
+	protected void doOutputMessage(CharSequence message) {
 		System.out.println(message);
 	}
 
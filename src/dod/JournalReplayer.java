@@ -0,0 +1,226 @@
+package dod;
+
+import dod.game.GameLogic;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Plays a game recorded in a CommandJournal out again, as fast as it can,
+ * against a fresh GameLogic created with the same map, look distance and
+ * seed. Players join, leave and send their commands in the order the server
+ * applied them, through the same command handling as the server, so a game
+ * that went wrong can be reproduced and debugged, and a real game used as a
+ * benchmark.
+ *
+ * The whole journal is read before the game is played, so only playing it is
+ * timed. The result of every command, and the IDs players are given, come
+ * out the same each time the journal is replayed.
+ */
+public class JournalReplayer {
+	private static final String USAGE = "Usage: java dod.JournalReplayer <journal> [map=<as journaled>]"
+			+ " [repeat=1] [print=false]";
+
+	// The journal's records, in order
+	private final List<Integer> kinds = new ArrayList<Integer>();
+	private final List<Integer> playerIDs = new ArrayList<Integer>();
+	private final List<String> lines = new ArrayList<String>();
+	private long journaledNanos = 0;
+
+	private final String mapFile;
+	private final int lookDistance;
+	private final long seed;
+
+	// How many times each command was applied, and failed, in the last replay
+	private final Map<String, long[]> results = new TreeMap<String, long[]>();
+	private long outputLength = 0;
+
+	/**
+	 * A player of the replayed game, who throws away everything they are sent
+	 */
+	private final class ReplayUser extends CommandLineUser {
+		ReplayUser(GameLogic game) {
+			super(game);
+		}
+
+		@Override
+		public void run() {
+		}
+
+		@Override
+		protected void doOutputMessage(CharSequence message) {
+			JournalReplayer.this.outputLength += message.length();
+		}
+
+		@Override
+		protected void commandProcessed(String command, long nanos, boolean failed) {
+			final String name = (command == null) ? "INVALID" : command;
+			long result[] = JournalReplayer.this.results.get(name);
+			if (result == null) {
+				result = new long[2];
+				JournalReplayer.this.results.put(name, result);
+			}
+			result[0]++;
+			if (failed) {
+				result[1]++;
+			}
+		}
+	}
+
+	/**
+	 * Replays a journal, e.g. java dod.JournalReplayer journals/game-0.dodj repeat=5
+	 * @param args the journal's file name, then any options
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		String mapFile = null;
+		int repeat = 1;
+		boolean print = false;
+		try {
+			for (int i = 1; i < args.length; i++) {
+				final int equals = args[i].indexOf('=');
+				final String name = (equals < 0) ? args[i] : args[i].substring(0, equals);
+				final String value = (equals < 0) ? "" : args[i].substring(equals + 1);
+				if (name.equals("map")) {
+					mapFile = value;
+				} else if (name.equals("repeat")) {
+					repeat = Integer.parseInt(value);
+					if (repeat < 1) {
+						throw new IllegalArgumentException("repeat must be at least 1");
+					}
+				} else if (name.equals("print")) {
+					print = Boolean.parseBoolean(value);
+				} else {
+					throw new IllegalArgumentException("unknown option " + args[i]);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid argument: " + e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		final JournalReplayer replayer;
+		try {
+			replayer = new JournalReplayer(new File(args[0]), mapFile, print);
+		} catch (IOException e) {
+			System.err.println("Cannot read the journal: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		try {
+			for (int i = 0; i < repeat; i++) {
+				final long nanos = replayer.replay();
+				replayer.printRun(i + 1, nanos);
+			}
+		} catch (FileNotFoundException | ParseException e) {
+			System.err.println("Cannot load the map " + replayer.mapFile + ": " + e.getMessage());
+			System.exit(1);
+		} catch (IllegalStateException e) {
+			System.err.println("The replay did not match the journal: " + e.getMessage());
+			System.exit(1);
+		}
+		replayer.printResults();
+	}
+
+	/**
+	 * Reads a journal
+	 * @param mapFile the map to replay the game on, or null for the one journaled
+	 * @param print whether to print every record as it is read
+	 */
+	JournalReplayer(File journal, String mapFile, boolean print) throws IOException {
+		try (CommandJournal.Reader reader = new CommandJournal.Reader(journal)) {
+			this.mapFile = (mapFile == null) ? reader.mapFile() : mapFile;
+			this.lookDistance = reader.lookDistance();
+			this.seed = reader.seed();
+			if (print) {
+				System.out.println(String.format(Locale.ROOT, "Map %s, look distance %d, seed %d", reader.mapFile(),
+						this.lookDistance, this.seed));
+			}
+
+			while (reader.next()) {
+				this.kinds.add(reader.kind());
+				this.playerIDs.add(reader.playerID());
+				this.lines.add((reader.kind() == CommandJournal.COMMAND) ? reader.line() : null);
+				this.journaledNanos = reader.nanos();
+				if (print) {
+					System.out.println(String.format(Locale.ROOT, "%12.3fms  player %-4d %s", reader.nanos() / 1e6,
+							reader.playerID(), (reader.kind() == CommandJournal.JOIN) ? "joins"
+									: (reader.kind() == CommandJournal.LEAVE) ? "leaves" : reader.line()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Plays the journal out on a new game
+	 * @return how long it took, in nanoseconds
+	 * @throws IllegalStateException if the game did not go as journaled
+	 */
+	long replay() throws FileNotFoundException, ParseException {
+		final GameLogic game = new GameLogic(this.mapFile, this.lookDistance, this.seed);
+		final Map<Integer, ReplayUser> users = new HashMap<Integer, ReplayUser>();
+		this.results.clear();
+		this.outputLength = 0;
+
+		final long start = System.nanoTime();
+		for (int i = 0; i < this.kinds.size(); i++) {
+			final int playerID = this.playerIDs.get(i);
+			final int kind = this.kinds.get(i);
+			if (kind == CommandJournal.JOIN) {
+				final ReplayUser user = new ReplayUser(game);
+				user.addPlayer();
+				if (user.playerID != playerID) {
+					throw new IllegalStateException("player " + playerID + " joined as player " + user.playerID);
+				}
+				users.put(playerID, user);
+				continue;
+			}
+
+			final ReplayUser user = users.get(playerID);
+			if (user == null) {
+				throw new IllegalStateException("player " + playerID + " was never journaled joining");
+			}
+			try {
+				if (kind == CommandJournal.LEAVE) {
+					user.removePlayer();
+				} else {
+					user.processCommand(this.lines.get(i));
+				}
+			} catch (RuntimeException e) {
+				// Caught by the server's GameActor too, so the game carries on
+				e.printStackTrace();
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void printRun(int run, long nanos) {
+		System.out.println(String.format(Locale.ROOT,
+				"Run %d: %d records in %.3fms, %.0f/s, %.0fx faster than the %.1fs journaled", run, this.kinds.size(),
+				nanos / 1e6, this.kinds.size() / (nanos / 1e9), this.journaledNanos / (double) nanos,
+				this.journaledNanos / 1e9));
+	}
+
+	private void printResults() {
+		System.out.println(String.format(Locale.ROOT, "%-14s %10s %10s", "Command", "Count", "Fails"));
+		for (final Map.Entry<String, long[]> result : this.results.entrySet()) {
+			System.out.println(String.format(Locale.ROOT, "%-14s %10d %10d", result.getKey(), result.getValue()[0],
+					result.getValue()[1]));
+		}
+		System.out.println("Output: " + this.outputLength + " characters");
+	}
+}
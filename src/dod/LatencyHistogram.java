@@ -0,0 +1,123 @@
+package dod;
+
+import java.util.Arrays;
+
+/**
+ * Counts latencies in buckets about one and a half percent wide, so any number
+ * of them can be recorded in a fixed amount of memory and percentiles read
+ * back to within that precision. Not thread-safe.
+ */
+final class LatencyHistogram {
+	// Each power of two is split into this many buckets
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// Values below twice SUB_BUCKETS have a bucket each, every power of two
+	// above that has SUB_BUCKETS, up to the largest long
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long counts[] = new long[BUCKETS];
+	private long count = 0;
+	private long max = 0;
+
+	/**
+	 * @param nanos
+	 *            the latency, in nanoseconds
+	 */
+	void record(long nanos) {
+		final long value = Math.max(nanos, 0);
+		this.counts[bucketOf(value)]++;
+		this.count++;
+		this.max = Math.max(this.max, value);
+	}
+
+	/**
+	 * Adds everything recorded by another histogram to this one
+	 */
+	void add(LatencyHistogram other) {
+		for (int bucket = 0; bucket < this.counts.length; bucket++) {
+			this.counts[bucket] += other.counts[bucket];
+		}
+		this.count += other.count;
+		this.max = Math.max(this.max, other.max);
+	}
+
+	/**
+	 * Adds latencies counted elsewhere, e.g. by a LatencyRecorder
+	 *
+	 * @param bucket
+	 *            the bucket they were counted in, see bucketOf
+	 * @param max
+	 *            the highest of them, or of any recorded with them
+	 */
+	void add(int bucket, long count, long max) {
+		this.counts[bucket] += count;
+		this.count += count;
+		this.max = Math.max(this.max, max);
+	}
+
+	/**
+	 * Forgets everything recorded
+	 */
+	void reset() {
+		Arrays.fill(this.counts, 0);
+		this.count = 0;
+		this.max = 0;
+	}
+
+	/**
+	 * @return the number of latencies recorded
+	 */
+	long count() {
+		return this.count;
+	}
+
+	/**
+	 * @return the highest latency recorded, or 0 if there are none
+	 */
+	long max() {
+		return this.max;
+	}
+
+	/**
+	 * @param percentile
+	 *            e.g. 99.9
+	 * @return the latency which that percentage of those recorded did not
+	 *         exceed, to within the width of a bucket, or 0 if there are none
+	 */
+	long percentile(double percentile) {
+		if (this.count == 0) {
+			return 0;
+		}
+
+		final long rank = Math.max(1, (long) Math.ceil(this.count * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0;; bucket++) {
+			seen += this.counts[bucket];
+			if (seen >= rank) {
+				return Math.min(highestIn(bucket), this.max);
+			}
+		}
+	}
+
+	/**
+	 * @return the bucket a latency is counted in, one of 0 to BUCKETS - 1
+	 */
+	static int bucketOf(long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		// Keep the top SUB_BUCKET_BITS + 1 bits of the value
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	private static long highestIn(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long top = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
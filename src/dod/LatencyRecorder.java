@@ -0,0 +1,51 @@
+package dod;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies like a LatencyHistogram, but any number of threads can
+ * record at once, without locking, while another reads snapshots
+ */
+final class LatencyRecorder {
+	private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            the latency, in nanoseconds
+	 */
+	void record(long nanos) {
+		final long value = Math.max(nanos, 0);
+		this.counts.incrementAndGet(LatencyHistogram.bucketOf(value));
+		this.totalNanos.add(value);
+		if (value > this.max.get()) {
+			this.max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * @return the sum of every latency recorded, in nanoseconds
+	 */
+	long totalNanos() {
+		return this.totalNanos.sum();
+	}
+
+	/**
+	 * Copies what has been recorded so far. Latencies recorded during the
+	 * copy may or may not be included.
+	 */
+	LatencyHistogram snapshot() {
+		final LatencyHistogram snapshot = new LatencyHistogram();
+		final long max = this.max.get();
+		for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+			final long count = this.counts.get(bucket);
+			if (count > 0) {
+				snapshot.add(bucket, count, max);
+			}
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,355 @@
+package dod;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One simulated player of the LoadGenerator, connected to the server by a
+ * non-blocking channel. A bot sends one command at a time and waits for its
+ * response before thinking about the next, so the time it waits is the
+ * server's response time.
+ */
+final class LoadBot {
+
+	/**
+	 * The commands a bot sends. Those which need the turn are only sent
+	 * between STARTTURN and ENDTURN.
+	 */
+	enum Command {
+		HELLO(false), DELTAS(false), LOOK(false), MOVE(true), PICKUP(true), ENDTURN(true), SHOUT(false);
+
+		final boolean needsTurn;
+
+		Command(boolean needsTurn) {
+			this.needsTurn = needsTurn;
+		}
+	}
+
+	private static final char DIRECTIONS[] = { 'N', 'E', 'S', 'W' };
+	private static final int COL_OFFSETS[] = { 0, 1, 0, -1 };
+	private static final int ROW_OFFSETS[] = { -1, 0, 1, 0 };
+
+	private final LoadGenerator generator;
+	private final int id;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final ByteBuffer input = ByteBuffer.allocate(2048);
+	private ByteBuffer output = ByteBuffer.allocate(256);
+	private final StringBuilder line = new StringBuilder();
+	private final String shoutMessage;
+
+	// Set once the server has sent GOLD, which starts every game
+	private boolean joined = false;
+	private boolean named = false;
+	private boolean deltasSent = false;
+	private boolean hasTurn = false;
+
+	// The command waiting for its response, and when it was sent
+	private Command pending = null;
+	private long sentAt;
+	// Set when a response arrives, the next command is only chosen once
+	// everything read with it has been handled, e.g. an ENDTURN after SUCCESS
+	private boolean responded = false;
+	// Set while the bot has nothing it can send until its turn starts
+	private boolean waitingForTurn = false;
+
+	// Rows of a LOOKREPLY still to come, -1 until the first row gives its size
+	private int lookRowsLeft = 0;
+	// The tiles of the last LOOKREPLY, and where the bot has moved to since
+	private int lookSize = 0;
+	private char view[] = new char[0];
+	private int viewCol;
+	private int viewRow;
+	private int lastDirection;
+
+	// When the bot has finished thinking about its next command
+	long nextCommandAt;
+
+	LoadBot(LoadGenerator generator, int id, SocketChannel channel, SelectionKey key) {
+		this.generator = generator;
+		this.id = id;
+		this.channel = channel;
+		this.key = key;
+		this.shoutMessage = "BOT " + id + " SAYS HELLO";
+	}
+
+	/**
+	 * @return true once the server has added the bot to a game
+	 */
+	boolean joined() {
+		return this.joined;
+	}
+
+	/**
+	 * @return whether the bot is thinking about its next command
+	 */
+	boolean thinking() {
+		return (this.pending == null) && !this.waitingForTurn && this.joined;
+	}
+
+	/**
+	 * Completes the connection once the channel is connectable
+	 */
+	void finishConnect() throws IOException {
+		if (this.channel.finishConnect()) {
+			this.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Closes the connection, which removes the bot from its game
+	 */
+	void close() {
+		this.key.cancel();
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// The connection is already gone
+		}
+	}
+
+	/**
+	 * Reads and handles whatever the server has sent
+	 */
+	void read() throws IOException {
+		final int read = this.channel.read(this.input);
+		if (read < 0) {
+			throw new EOFException("closed by the server");
+		}
+
+		final long now = System.nanoTime();
+		this.input.flip();
+		while (this.input.hasRemaining()) {
+			final char c = (char) (this.input.get() & 0xff);
+			if (c == '\n') {
+				handleLine(now);
+				this.line.setLength(0);
+			} else if (c != '\r') {
+				this.line.append(c);
+			}
+		}
+		this.input.clear();
+
+		if (this.responded) {
+			this.responded = false;
+			this.generator.thinkAbout(this, now);
+		}
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel accepts
+	 */
+	void write() throws IOException {
+		this.output.flip();
+		this.channel.write(this.output);
+		this.output.compact();
+		this.key.interestOps(SelectionKey.OP_READ | ((this.output.position() > 0) ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * Sends the next command, the bot having finished thinking. Until it has
+	 * a name, and has asked for DELTAS if told to, those are all it sends.
+	 */
+	void sendNext() throws IOException {
+		final Command command;
+		if (!this.named) {
+			command = Command.HELLO;
+		} else if (this.generator.sendsDeltas() && !this.deltasSent) {
+			command = Command.DELTAS;
+		} else {
+			command = this.generator.chooseCommand(this.hasTurn);
+		}
+		if (command == null) {
+			this.waitingForTurn = true;
+			return;
+		}
+
+		final String text;
+		switch (command) {
+		case HELLO:
+			text = "HELLO bot" + this.id;
+			break;
+		case MOVE:
+			text = "MOVE " + DIRECTIONS[chooseDirection()];
+			break;
+		case SHOUT:
+			text = "SHOUT " + this.shoutMessage;
+			break;
+		default:
+			text = command.name();
+		}
+
+		final int length = text.length() + 1;
+		if (this.output.remaining() < length) {
+			this.output = OutboundBuffer.grow(this.output, this.output.position() + length);
+		}
+		for (int i = 0; i < text.length(); i++) {
+			this.output.put((byte) text.charAt(i));
+		}
+		this.output.put((byte) '\n');
+
+		this.pending = command;
+		this.sentAt = System.nanoTime();
+		write();
+	}
+
+	private void handleLine(long now) throws IOException {
+		if (this.lookRowsLeft != 0) {
+			lookRow();
+			if (this.lookRowsLeft == 0) {
+				responseReceived(now, null);
+			}
+			return;
+		}
+		// The end of a LOOKREPLY is followed by an empty line
+		if (this.line.length() == 0) {
+			return;
+		}
+
+		if (!this.joined) {
+			// The first message of every game is GOLD
+			this.joined = true;
+			this.generator.joined(this);
+			sendNext();
+		} else if (startsWith("SUCCESS")) {
+			if (this.pending == Command.DELTAS) {
+				this.deltasSent = true;
+			}
+			responseReceived(now, null);
+		} else if (startsWith("FAIL")) {
+			responseReceived(now, this.line.substring(Math.min("FAIL ".length(), this.line.length())));
+		} else if (startsWith("HELLO")) {
+			this.named = true;
+			responseReceived(now, null);
+		} else if (startsWith("LOOKREPLY")) {
+			this.lookRowsLeft = -1;
+		} else if (startsWith("STARTTURN")) {
+			this.hasTurn = true;
+			this.generator.messagePushed();
+			if (this.waitingForTurn) {
+				this.waitingForTurn = false;
+				this.responded = true;
+			}
+		} else if (startsWith("ENDTURN")) {
+			// Sent in reply to ENDTURN, as well as when the turn ends anyway
+			this.hasTurn = false;
+			if (this.pending == Command.ENDTURN) {
+				responseReceived(now, null);
+			} else {
+				this.generator.messagePushed();
+			}
+		} else if ((this.pending == Command.SHOUT) && startsWith("MESSAGE ")
+				&& (this.line.length() == "MESSAGE ".length() + this.shoutMessage.length())
+				&& (this.line.indexOf(this.shoutMessage) == "MESSAGE ".length())) {
+			// Every player is sent a shout, including whoever shouted it
+			responseReceived(now, null);
+		} else {
+			// e.g. CHANGE or MESSAGE
+			this.generator.messagePushed();
+		}
+	}
+
+	/**
+	 * Handles a row of a LOOKREPLY, remembering what the bot can see
+	 */
+	private void lookRow() {
+		if (this.lookRowsLeft < 0) {
+			this.lookSize = this.line.length();
+			this.lookRowsLeft = this.lookSize;
+			if (this.view.length != this.lookSize * this.lookSize) {
+				this.view = new char[this.lookSize * this.lookSize];
+			}
+			this.viewCol = this.lookSize / 2;
+			this.viewRow = this.lookSize / 2;
+		}
+		final int row = this.lookSize - this.lookRowsLeft;
+		for (int col = 0; col < this.lookSize; col++) {
+			this.view[row * this.lookSize + col] = (col < this.line.length()) ? this.line.charAt(col) : 'X';
+		}
+		this.lookRowsLeft--;
+	}
+
+	/**
+	 * @param failure
+	 *            the reason the command failed, or null if it succeeded
+	 */
+	private void responseReceived(long now, String failure) {
+		final Command command = this.pending;
+		if (command == null) {
+			return;
+		}
+		this.pending = null;
+		this.responded = true;
+		this.generator.commandCompleted(command, now - this.sentAt, failure);
+
+		if (command == Command.MOVE) {
+			final int col = this.viewCol + COL_OFFSETS[this.lastDirection];
+			final int row = this.viewRow + ROW_OFFSETS[this.lastDirection];
+			if (failure == null) {
+				// Keep track of where the bot is in what it last saw
+				this.viewCol = col;
+				this.viewRow = row;
+			} else if (inView(col, row)) {
+				// Don't walk into the same wall again
+				this.view[row * this.lookSize + col] = '#';
+			}
+		}
+	}
+
+	/**
+	 * @return the index of a direction the bot can move in, as far as it
+	 *         knows, or of any direction if it knows of none
+	 */
+	private int chooseDirection() {
+		int possible = 0;
+		for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+			if (canMove(direction)) {
+				possible++;
+			}
+		}
+
+		int choice = this.generator.random().nextInt((possible == 0) ? DIRECTIONS.length : possible);
+		for (int direction = 0; direction < DIRECTIONS.length; direction++) {
+			if ((possible == 0) || canMove(direction)) {
+				if (choice-- == 0) {
+					this.lastDirection = direction;
+					break;
+				}
+			}
+		}
+		return this.lastDirection;
+	}
+
+	/**
+	 * Bots keep off the exit, since one of them winning would end the game,
+	 * so only tiles they have seen are safe to move onto
+	 */
+	private boolean canMove(int direction) {
+		final int col = this.viewCol + COL_OFFSETS[direction];
+		final int row = this.viewRow + ROW_OFFSETS[direction];
+		if (!inView(col, row)) {
+			return false;
+		}
+		final char tile = this.view[row * this.lookSize + col];
+		return (tile != '#') && (tile != 'P') && (tile != 'X') && (tile != 'E');
+	}
+
+	private boolean inView(int col, int row) {
+		return (col >= 0) && (row >= 0) && (col < this.lookSize) && (row < this.lookSize);
+	}
+
+	private boolean startsWith(String prefix) {
+		if (this.line.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (this.line.charAt(i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
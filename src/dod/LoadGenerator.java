@@ -0,0 +1,458 @@
+package dod;
+
+import dod.LoadBot.Command;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator for the server. It connects any number of bots from
+ * a single selector thread, each of which plays a mix of commands with some
+ * thinking time between them, and reports the commands' throughput and
+ * latency percentiles. Running it with more and more bots gives the server's
+ * scaling curve.
+ *
+ * Each bot waits for the response to one command before thinking about the
+ * next, so a slow server is sent fewer commands rather than a growing queue
+ * of them. Commands which need the turn, e.g. MOVE, are only sent by the bot
+ * whose turn it is, as a player would.
+ */
+public class LoadGenerator {
+	private static final String USAGE = "Usage: java dod.LoadGenerator <host> <port> <bots> [duration=30]"
+			+ " [warmup=5] [think=0-0] [mix=LOOK:4,MOVE:4,PICKUP:1,ENDTURN:1] [deltas=false] [report=5] [seed=1]";
+	private static final Command ALL_COMMANDS[] = Command.values();
+	// Connections opened but not yet joined to a game, more than this at once
+	// could overrun the server's accept backlog
+	private static final int MAX_CONNECTING = 64;
+	private static final double PERCENTILES[] = { 50, 99, 99.9 };
+
+	private final InetSocketAddress address;
+	private final int bots;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final long reportNanos;
+	private final long minThinkNanos;
+	private final long maxThinkNanos;
+	private final int weights[] = new int[ALL_COMMANDS.length];
+	private final boolean deltas;
+	private final Random random;
+
+	// Bots thinking about their next command, the first to finish at the head
+	private final PriorityQueue<LoadBot> thinking = new PriorityQueue<LoadBot>(
+			Comparator.comparingLong((LoadBot bot) -> bot.nextCommandAt));
+
+	// Indexed by command, since the last report and since the warm up
+	private final LatencyHistogram intervalLatencies[] = new LatencyHistogram[ALL_COMMANDS.length];
+	private final LatencyHistogram latencies[] = new LatencyHistogram[ALL_COMMANDS.length];
+	private final long intervalFailures[] = new long[ALL_COMMANDS.length];
+	private final long failures[] = new long[ALL_COMMANDS.length];
+	// How often each command failed for each reason, e.g. "MOVE not your turn"
+	private final Map<String, Long> failureReasons = new TreeMap<String, Long>();
+	private long intervalPushed = 0;
+	private long pushed = 0;
+
+	private int connecting = 0;
+	private int connected = 0;
+	private int disconnected = 0;
+	private String firstError = null;
+
+	/**
+	 * Runs the load generator, e.g. java dod.LoadGenerator localhost 4444 500 think=100-200
+	 * @param args the server's host and port, how many bots to connect, then any options
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		final LoadGenerator generator;
+		try {
+			final Map<String, String> options = new HashMap<String, String>();
+			for (int i = 3; i < args.length; i++) {
+				final int equals = args[i].indexOf('=');
+				if (equals < 0) {
+					throw new IllegalArgumentException("expected option=value, not " + args[i]);
+				}
+				options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+			}
+			generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), options);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid argument: " + e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+			return;
+		}
+
+		try {
+			generator.run();
+		} catch (IOException e) {
+			System.err.println("Load generator failed: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param host the server's host name
+	 * @param port the server's port
+	 * @param bots how many bots to connect
+	 * @param options any of the options in the usage, by name
+	 */
+	public LoadGenerator(String host, int port, int bots, Map<String, String> options) {
+		if (bots < 1) {
+			throw new IllegalArgumentException("need at least one bot");
+		}
+		for (final String option : options.keySet()) {
+			if (!USAGE.contains("[" + option + "=")) {
+				throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+
+		this.address = new InetSocketAddress(host, port);
+		this.bots = bots;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(parseLong(options, "duration", 30));
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(parseLong(options, "warmup", 5));
+		this.reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, parseLong(options, "report", 5)));
+		this.deltas = Boolean.parseBoolean(options.getOrDefault("deltas", "false"));
+		this.random = new Random(parseLong(options, "seed", 1));
+
+		// The think time is either fixed, e.g. 100, or a range, e.g. 50-150
+		final String think = options.getOrDefault("think", "0");
+		final int dash = think.indexOf('-');
+		final long minThink = Long.parseLong((dash < 0) ? think : think.substring(0, dash));
+		final long maxThink = (dash < 0) ? minThink : Long.parseLong(think.substring(dash + 1));
+		if ((minThink < 0) || (maxThink < minThink)) {
+			throw new IllegalArgumentException("invalid think time " + think);
+		}
+		this.minThinkNanos = TimeUnit.MILLISECONDS.toNanos(minThink);
+		this.maxThinkNanos = TimeUnit.MILLISECONDS.toNanos(maxThink);
+
+		parseMix(options.getOrDefault("mix", "LOOK:4,MOVE:4,PICKUP:1,ENDTURN:1"));
+
+		for (int i = 0; i < ALL_COMMANDS.length; i++) {
+			this.intervalLatencies[i] = new LatencyHistogram();
+			this.latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Connects the bots and plays until the warm up and the measurement are
+	 * over, then prints a summary
+	 * @throws IOException if the selector could not be opened
+	 */
+	public void run() throws IOException {
+		System.out.println("Connecting " + this.bots + " bots to " + this.address);
+		try (Selector selector = Selector.open()) {
+			final long start = System.nanoTime();
+			final long measureFrom = start + this.warmupNanos;
+			final long end = measureFrom + this.durationNanos;
+			boolean measuring = false;
+			long lastReport = start;
+			long measuredFrom = start;
+			int opened = 0;
+
+			while (true) {
+				long now = System.nanoTime();
+				if (!measuring && (now >= measureFrom)) {
+					// Forget the commands of the warm up
+					if (this.warmupNanos > 0) {
+						System.out.println("Warm up over");
+					}
+					for (int i = 0; i < ALL_COMMANDS.length; i++) {
+						this.latencies[i].reset();
+						this.failures[i] = 0;
+					}
+					this.failureReasons.clear();
+					this.pushed = 0;
+					measuring = true;
+					measuredFrom = now;
+				}
+				if (now - lastReport >= this.reportNanos) {
+					report(now - start, now - lastReport);
+					lastReport = now;
+				}
+				if (now >= end) {
+					printSummary(now - measuredFrom);
+					break;
+				}
+
+				// Open connections a few at a time
+				while ((opened < this.bots) && (this.connecting < MAX_CONNECTING)) {
+					connect(selector, opened++);
+				}
+
+				// Send the commands of the bots which have finished thinking
+				while (!this.thinking.isEmpty() && (this.thinking.peek().nextCommandAt <= now)) {
+					final LoadBot bot = this.thinking.poll();
+					try {
+						bot.sendNext();
+					} catch (IOException e) {
+						disconnect(bot, e);
+					}
+				}
+
+				long wakeAt = Math.min(end, lastReport + this.reportNanos);
+				if (!measuring) {
+					wakeAt = Math.min(wakeAt, measureFrom);
+				}
+				if (!this.thinking.isEmpty()) {
+					wakeAt = Math.min(wakeAt, this.thinking.peek().nextCommandAt);
+				}
+				final long timeout = TimeUnit.NANOSECONDS.toMillis(wakeAt - now + 999999);
+				if (timeout <= 0) {
+					selector.selectNow();
+				} else {
+					selector.select(timeout);
+				}
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final LoadBot bot = (LoadBot) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							bot.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							bot.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							bot.write();
+						}
+					} catch (IOException e) {
+						disconnect(bot, e);
+					}
+				}
+			}
+
+			for (final SelectionKey key : selector.keys()) {
+				key.channel().close();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the bots ask to be sent LOOKDELTA rather than CHANGE
+	 */
+	boolean sendsDeltas() {
+		return this.deltas;
+	}
+
+	/**
+	 * Picks a command from the mix
+	 * @param hasTurn whether the bot can send commands which need the turn
+	 * @return the command, or null if the bot can only wait for its turn
+	 */
+	Command chooseCommand(boolean hasTurn) {
+		int total = 0;
+		for (final Command command : ALL_COMMANDS) {
+			if (hasTurn || !command.needsTurn) {
+				total += this.weights[command.ordinal()];
+			}
+		}
+		if (total == 0) {
+			return null;
+		}
+
+		int choice = this.random.nextInt(total);
+		for (final Command command : ALL_COMMANDS) {
+			if (hasTurn || !command.needsTurn) {
+				choice -= this.weights[command.ordinal()];
+				if (choice < 0) {
+					return command;
+				}
+			}
+		}
+		throw new IllegalStateException("no command chosen");
+	}
+
+	/**
+	 * @return the random numbers the bots choose with, so a run can be repeated
+	 */
+	Random random() {
+		return this.random;
+	}
+
+	/**
+	 * Called once a bot has been added to a game
+	 */
+	void joined(LoadBot bot) {
+		this.connecting--;
+		this.connected++;
+	}
+
+	/**
+	 * Records the response to a command
+	 * @param latency how long after sending the command the response arrived, in nanoseconds
+	 * @param failure the reason given by FAIL, or null if the command succeeded
+	 */
+	void commandCompleted(Command command, long latency, String failure) {
+		this.intervalLatencies[command.ordinal()].record(latency);
+		this.latencies[command.ordinal()].record(latency);
+		if (failure != null) {
+			this.intervalFailures[command.ordinal()]++;
+			this.failures[command.ordinal()]++;
+			this.failureReasons.merge(command + " " + failure, 1L, Long::sum);
+		}
+	}
+
+	/**
+	 * Counts a message the server sent without being asked, e.g. CHANGE
+	 */
+	void messagePushed() {
+		this.intervalPushed++;
+		this.pushed++;
+	}
+
+	/**
+	 * Lets a bot think about its next command, or sends it straight away if
+	 * there is no thinking time
+	 */
+	void thinkAbout(LoadBot bot, long now) throws IOException {
+		if (!bot.thinking()) {
+			return;
+		}
+		final long think = this.minThinkNanos + (long) (this.random.nextDouble() * (this.maxThinkNanos - this.minThinkNanos));
+		if (think == 0) {
+			bot.sendNext();
+		} else {
+			bot.nextCommandAt = now + think;
+			this.thinking.add(bot);
+		}
+	}
+
+	private void connect(Selector selector, int id) throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		final SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+		final LoadBot bot = new LoadBot(this, id, channel, key);
+		key.attach(bot);
+		this.connecting++;
+		try {
+			if (channel.connect(this.address)) {
+				bot.finishConnect();
+			}
+		} catch (IOException e) {
+			disconnect(bot, e);
+		}
+	}
+
+	private void disconnect(LoadBot bot, IOException e) {
+		if (this.firstError == null) {
+			this.firstError = e.getMessage();
+		}
+		if (bot.joined()) {
+			this.connected--;
+		} else {
+			this.connecting--;
+		}
+		this.disconnected++;
+		this.thinking.remove(bot);
+		bot.close();
+	}
+
+	private void report(long elapsed, long interval) {
+		final LatencyHistogram all = new LatencyHistogram();
+		long fails = 0;
+		for (int i = 0; i < ALL_COMMANDS.length; i++) {
+			all.add(this.intervalLatencies[i]);
+			fails += this.intervalFailures[i];
+			this.intervalLatencies[i].reset();
+			this.intervalFailures[i] = 0;
+		}
+
+		final double seconds = interval / 1e9;
+		System.out.println(String.format(Locale.ROOT,
+				"%6.1fs  bots %d  commands/s %.0f  %s  fails %d  pushed/s %.0f%s", elapsed / 1e9, this.connected,
+				all.count() / seconds, percentiles(all), fails, this.intervalPushed / seconds,
+				(this.disconnected > 0) ? "  disconnected " + this.disconnected : ""));
+		this.intervalPushed = 0;
+	}
+
+	private void printSummary(long measured) {
+		final double seconds = measured / 1e9;
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Measured %.1fs with %d of %d bots connected", seconds,
+				this.connected, this.bots));
+		if (this.firstError != null) {
+			System.out.println(this.disconnected + " bots disconnected, first because: " + this.firstError);
+		}
+		System.out.println(String.format(Locale.ROOT, "%-8s %10s %10s %9s %9s %9s %9s %8s", "Command", "Count",
+				"Per sec", "p50 ms", "p99 ms", "p99.9 ms", "Max ms", "Fails"));
+
+		final LatencyHistogram all = new LatencyHistogram();
+		long allFailures = 0;
+		for (int i = 0; i < ALL_COMMANDS.length; i++) {
+			if (this.latencies[i].count() > 0) {
+				printSummaryRow(ALL_COMMANDS[i].name(), this.latencies[i], this.failures[i], seconds);
+				all.add(this.latencies[i]);
+				allFailures += this.failures[i];
+			}
+		}
+		printSummaryRow("All", all, allFailures, seconds);
+		for (final Map.Entry<String, Long> reason : this.failureReasons.entrySet()) {
+			System.out.println(String.format(Locale.ROOT, "FAIL %8d %s", reason.getValue(), reason.getKey()));
+		}
+		System.out.println(String.format(Locale.ROOT, "Messages pushed by the server: %d (%.0f/s)", this.pushed,
+				this.pushed / seconds));
+	}
+
+	private static void printSummaryRow(String name, LatencyHistogram latencies, long failures, double seconds) {
+		System.out.println(String.format(Locale.ROOT, "%-8s %10d %10.0f %9.3f %9.3f %9.3f %9.3f %8d", name,
+				latencies.count(), latencies.count() / seconds, latencies.percentile(50) / 1e6,
+				latencies.percentile(99) / 1e6, latencies.percentile(99.9) / 1e6, latencies.max() / 1e6, failures));
+	}
+
+	private static String percentiles(LatencyHistogram latencies) {
+		final StringBuilder text = new StringBuilder();
+		for (final double percentile : PERCENTILES) {
+			text.append(String.format(Locale.ROOT, "p%s %.3fms  ",
+					(percentile == Math.rint(percentile)) ? String.valueOf((int) percentile) : String.valueOf(percentile),
+					latencies.percentile(percentile) / 1e6));
+		}
+		return text.append(String.format(Locale.ROOT, "max %.3fms", latencies.max() / 1e6)).toString();
+	}
+
+	/**
+	 * Reads the mix of commands, e.g. LOOK:4,MOVE:1 sends four LOOKs for every MOVE
+	 */
+	private void parseMix(String mix) {
+		for (final String entry : mix.split(",")) {
+			final int colon = entry.indexOf(':');
+			final Command command;
+			try {
+				command = Command.valueOf(((colon < 0) ? entry : entry.substring(0, colon)).trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown command in mix: " + entry);
+			}
+			if ((command == Command.HELLO) || (command == Command.DELTAS)) {
+				throw new IllegalArgumentException(command + " is only sent once, when a bot joins");
+			}
+			final int weight = (colon < 0) ? 1 : Integer.parseInt(entry.substring(colon + 1).trim());
+			if (weight < 0) {
+				throw new IllegalArgumentException("negative weight in mix: " + entry);
+			}
+			this.weights[command.ordinal()] = weight;
+		}
+	}
+
+	private static long parseLong(Map<String, String> options, String name, long defaultValue) {
+		final String value = options.get(name);
+		return (value == null) ? defaultValue : Long.parseLong(value);
+	}
+}
@@ -0,0 +1,43 @@
+package dod;
+
+import dod.game.Map;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Command line tool converting a map into the binary map format, which the
+ * server loads much faster than an ASCII map. The server accepts either kind
+ * of map file.
+ */
+public class MapConverter {
+
+    /**
+     * Converts a map, e.g. java dod.MapConverter maps/defaultMap maps/defaultMap.dodm
+     * @param args the map to convert and the file to write the binary map to
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java dod.MapConverter <map file> <binary map file>");
+            System.exit(1);
+        }
+
+        try {
+            long start = System.nanoTime();
+            Map map = Map.load(args[0]);
+            map.writeBinary(args[1]);
+            System.out.println("Converted " + map.getName() + " (" + map.getMapWidth() + "x"
+                    + map.getMapHeight() + ") in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (FileNotFoundException e) {
+            System.err.println("Map file not found: " + e.getMessage());
+            System.exit(1);
+        } catch (ParseException e) {
+            System.err.println("Invalid map file " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Could not write " + args[1] + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
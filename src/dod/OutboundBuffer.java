@@ -0,0 +1,219 @@
+package dod;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output queued for a client but not yet sent. The game thread adds whole
+ * messages and the thread servicing the connection sends them, so the game
+ * never waits for a client.
+ *
+ * The buffer is bounded: once a client which has stopped reading has fallen
+ * behind by the limit, the buffer overflows and its contents are thrown away,
+ * and the connection is expected to disconnect the client.
+ */
+final class OutboundBuffer {
+	// Any client this far behind is treated as having stopped reading
+	static final int DEFAULT_LIMIT = 1024 * 1024;
+
+	// Buffers start small so idle connections are cheap, and grow on demand
+	private static final int INITIAL_CAPACITY = 512;
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final int limit;
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+	// Totals over the life of the connection, the backlog is the difference
+	private long queued = 0;
+	private long sent = 0;
+	private boolean overflowed = false;
+	private boolean closed = false;
+	// Set when the game asks for the output to be sent, see takeOutput
+	private boolean flushRequested = false;
+
+	/**
+	 * Default constructor for an outbound buffer
+	 * @param limit how many bytes may be waiting to be sent before the buffer overflows
+	 */
+	OutboundBuffer(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Adds a message, as a line of text or, if the client has switched, a
+	 * binary frame
+	 * @param binary encodes the message, or null to send it as text
+	 * @return false if the message did not fit, the buffer has now overflowed
+	 */
+	synchronized boolean put(CharSequence message, BinaryProtocol binary) {
+		if (closed) {
+			return true;
+		}
+		if (overflowed) {
+			return false;
+		}
+		if (binary != null) {
+			binary.encode(message);
+			return putFrame(binary);
+		}
+
+		final int length = message.length() + LINE_SEPARATOR.length();
+		if (!makeRoom(length)) {
+			return false;
+		}
+		putAscii(message);
+		putAscii(LINE_SEPARATOR);
+		queued += length;
+		return true;
+	}
+
+	/**
+	 * Adds the frame the protocol encoded last
+	 * @return false if the frame did not fit, the buffer has now overflowed
+	 */
+	synchronized boolean putFrame(BinaryProtocol binary) {
+		if (closed) {
+			return true;
+		}
+		if (overflowed) {
+			return false;
+		}
+
+		final int length = binary.frameLength();
+		if (!makeRoom(length)) {
+			return false;
+		}
+		binary.writeTo(buffer);
+		queued += length;
+		return true;
+	}
+
+	/**
+	 * Grows the buffer to fit a message, unless the client would then be too
+	 * far behind
+	 * @return false if the buffer has overflowed instead
+	 */
+	private boolean makeRoom(int length) {
+		if (queued - sent + length > limit) {
+			overflowed = true;
+			buffer = ByteBuffer.allocate(0);
+			return false;
+		}
+		if (buffer.remaining() < length) {
+			buffer = grow(buffer, Math.max(buffer.capacity() * 2, buffer.position() + length));
+		}
+		return true;
+	}
+
+	/**
+	 * Writes as much as a non-blocking channel accepts
+	 * @return the number of bytes still waiting to be sent
+	 */
+	synchronized int writeTo(WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		try {
+			sent += channel.write(buffer);
+		} finally {
+			buffer.compact();
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * Asks for the output to be sent, see takeOutput
+	 */
+	synchronized void requestFlush() {
+		flushRequested = true;
+	}
+
+	/**
+	 * @return true if a flush has been requested and there is output to send
+	 */
+	synchronized boolean outputReady() {
+		return !closed && !overflowed && flushRequested && (buffer.position() > 0);
+	}
+
+	/**
+	 * Takes everything queued once a flush has been requested, so it can be
+	 * written without holding up the game. Pass the buffer back once it has
+	 * been written, with its position moved past the bytes written, and it is
+	 * reused for the next output.
+	 * @param written the buffer returned by the previous call, or an empty one
+	 * @return the output to send, ready to be read, or null if there is none
+	 * ready, or the buffer has been closed or has overflowed
+	 */
+	synchronized ByteBuffer takeOutput(ByteBuffer written) {
+		if (closed || overflowed) {
+			return null;
+		}
+		sent += written.position();
+		written.clear();
+		if (!flushRequested) {
+			return null;
+		}
+		flushRequested = false;
+		if (buffer.position() == 0) {
+			return null;
+		}
+
+		final ByteBuffer output = buffer;
+		buffer = written;
+		output.flip();
+		return output;
+	}
+
+	/**
+	 * Throws away anything not yet sent
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return true if the client fell too far behind and the buffer overflowed
+	 */
+	synchronized boolean overflowed() {
+		return overflowed;
+	}
+
+	/**
+	 * @return the number of bytes queued over the life of the connection
+	 */
+	synchronized long queued() {
+		return queued;
+	}
+
+	/**
+	 * @return the number of bytes sent over the life of the connection
+	 */
+	synchronized long sent() {
+		return sent;
+	}
+
+	/**
+	 * @return the number of bytes queued but not yet sent
+	 */
+	synchronized int backlog() {
+		return (int) (queued - sent);
+	}
+
+	/**
+	 * Copies the text into the buffer, the protocol only uses ASCII
+	 */
+	private void putAscii(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			buffer.put((byte) (c < 128 ? c : '?'));
+		}
+	}
+
+	/**
+	 * Creates a bigger buffer holding everything written to the old one
+	 */
+	static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+}
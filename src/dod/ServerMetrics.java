@@ -0,0 +1,391 @@
+package dod;
+
+import com.sun.net.httpserver.HttpServer;
+
+import dod.game.GameLogic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records what the server is doing: how often each command is carried out
+ * and how long the game takes over it, how long commands wait for their game,
+ * bytes in and out, connections, and the games' queues and counters. Recording
+ * never locks, since every connection and game thread does it.
+ *
+ * The metrics are published over JMX and, if given a port, as text over HTTP
+ * on the loopback interface, in the Prometheus text format, e.g.
+ * curl http://localhost:9090/metrics
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+	// Recorded for commands the server doesn't understand
+	static final String INVALID_COMMAND = "INVALID";
+	private static final double QUANTILES[] = { 0.5, 0.99, 0.999 };
+
+	private final int serverPort;
+	private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+	private final LatencyRecorder queueWait = new LatencyRecorder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	// How clients which fall behind with their output are dealt with
+	private final AtomicLong changesDropped = new AtomicLong();
+	private final AtomicLong deltasCoalesced = new AtomicLong();
+	private final AtomicLong slowClientsDisconnected = new AtomicLong();
+	private final AtomicLong peakOutputBacklog = new AtomicLong();
+	// Set once the games have been created
+	private volatile GameLobby lobby = null;
+	private volatile MBeanServer mbeanServer = null;
+
+	/**
+	 * @param serverPort
+	 *            the port the server listens on, which tells its MBeans apart
+	 *            from those of any other server in the JVM
+	 */
+	ServerMetrics(int serverPort) {
+		this.serverPort = serverPort;
+	}
+
+	/**
+	 * Includes the games of the lobby in the metrics
+	 */
+	void setLobby(GameLobby lobby) {
+		this.lobby = lobby;
+	}
+
+	/**
+	 * Records a command carried out by a game, see
+	 * CommandLineUser.commandProcessed
+	 *
+	 * @param command
+	 *            the name of the command, or null if there is no such command
+	 */
+	void commandProcessed(String command, long nanos, boolean failed) {
+		final String name = (command == null) ? INVALID_COMMAND : command;
+		CommandMetrics metrics = this.commands.get(name);
+		if (metrics == null) {
+			metrics = this.commands.computeIfAbsent(name, CommandMetrics::new);
+			register(metrics);
+		}
+		metrics.record(nanos, failed);
+	}
+
+	/**
+	 * Records how long a command waited for its game after it was read
+	 */
+	void commandWaited(long nanos) {
+		this.queueWait.record(nanos);
+	}
+
+	void bytesReceived(long bytes) {
+		this.bytesReceived.add(bytes);
+	}
+
+	void bytesSent(long bytes) {
+		this.bytesSent.add(bytes);
+	}
+
+	/**
+	 * @param change
+	 *            1 for a connection opened, -1 for one closed
+	 */
+	void connectionsChanged(int change) {
+		this.activeConnections.addAndGet(change);
+		if (change > 0) {
+			this.connectionsOpened.addAndGet(change);
+		}
+	}
+
+	void viewUpdateSkipped(boolean coalesced) {
+		(coalesced ? this.deltasCoalesced : this.changesDropped).incrementAndGet();
+	}
+
+	void recordOutputBacklog(int bytes) {
+		if (bytes > this.peakOutputBacklog.get()) {
+			this.peakOutputBacklog.accumulateAndGet(bytes, Math::max);
+		}
+	}
+
+	void slowClientDisconnected() {
+		this.slowClientsDisconnected.incrementAndGet();
+	}
+
+	/**
+	 * Publishes the metrics over JMX, as dod:type=Server and a
+	 * dod:type=Command for each command
+	 */
+	void registerMBeans() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, objectName("Server", null));
+		} catch (JMException e) {
+			System.err.println("Could not publish the server's metrics over JMX: " + e.getMessage());
+			return;
+		}
+		this.mbeanServer = server;
+		for (final CommandMetrics metrics : this.commands.values()) {
+			register(metrics);
+		}
+	}
+
+	/**
+	 * Serves the metrics as text on the loopback interface
+	 *
+	 * @return the HTTP server, already started
+	 */
+	HttpServer startHttpServer(int port) throws IOException {
+		final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange -> {
+			final byte body[] = toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text format
+	 */
+	String toText() {
+		final StringBuilder text = new StringBuilder(4096);
+
+		final List<CommandMetrics> commands = new ArrayList<CommandMetrics>(this.commands.values());
+		commands.sort((a, b) -> a.command().compareTo(b.command()));
+		header(text, "dod_command_seconds", "summary", "Time the game took to carry out each command");
+		for (final CommandMetrics metrics : commands) {
+			summary(text, "dod_command_seconds", "command=\"" + metrics.command() + "\"", metrics.latencies(),
+					metrics.totalNanos());
+		}
+		header(text, "dod_command_failures_total", "counter", "Commands answered with FAIL");
+		for (final CommandMetrics metrics : commands) {
+			sample(text, "dod_command_failures_total", "command=\"" + metrics.command() + "\"", metrics.getFailures());
+		}
+
+		header(text, "dod_command_queue_seconds", "summary", "Time commands waited for their game after being read");
+		summary(text, "dod_command_queue_seconds", null, this.queueWait.snapshot(), this.queueWait.totalNanos());
+
+		header(text, "dod_bytes_received_total", "counter", "Bytes read from clients");
+		sample(text, "dod_bytes_received_total", null, getBytesReceived());
+		header(text, "dod_bytes_sent_total", "counter", "Bytes written to clients");
+		sample(text, "dod_bytes_sent_total", null, getBytesSent());
+		header(text, "dod_connections", "gauge", "Clients connected");
+		sample(text, "dod_connections", null, getActiveConnections());
+		header(text, "dod_connections_opened_total", "counter", "Clients which have connected");
+		sample(text, "dod_connections_opened_total", null, getConnectionsOpened());
+
+		header(text, "dod_changes_dropped_total", "counter", "CHANGE messages not sent as the client was yet to LOOK");
+		sample(text, "dod_changes_dropped_total", null, getChangesDropped());
+		header(text, "dod_deltas_coalesced_total", "counter", "LOOKDELTA messages replaced by a CHANGE");
+		sample(text, "dod_deltas_coalesced_total", null, getDeltasCoalesced());
+		header(text, "dod_slow_clients_disconnected_total", "counter", "Clients disconnected for not reading");
+		sample(text, "dod_slow_clients_disconnected_total", null, getSlowClientsDisconnected());
+		header(text, "dod_output_backlog_peak_bytes", "gauge", "Most output any client has had waiting");
+		sample(text, "dod_output_backlog_peak_bytes", null, getPeakOutputBacklog());
+
+		final GameLobby lobby = this.lobby;
+		if (lobby != null) {
+			final List<GameActor> games = lobby.getGames();
+			header(text, "dod_game_queue_depth", "gauge", "Commands waiting for each game");
+			for (int i = 0; i < games.size(); i++) {
+				sample(text, "dod_game_queue_depth", "game=\"" + i + "\"", games.get(i).getQueueDepth());
+			}
+			header(text, "dod_game_connections", "gauge", "Clients playing each game");
+			for (int i = 0; i < games.size(); i++) {
+				sample(text, "dod_game_connections", "game=\"" + i + "\"", lobby.getConnections(i));
+			}
+			gameCounter(text, games, "dod_view_notifications_sent_total", "View changes sent to players",
+					GameLogic::getViewNotificationsSent);
+			gameCounter(text, games, "dod_view_notifications_suppressed_total",
+					"Players not told of a change they could not see", GameLogic::getViewNotificationsSuppressed);
+			gameCounter(text, games, "dod_look_cache_hits_total", "LOOKs answered with the previous reply",
+					GameLogic::getLookCacheHits);
+			gameCounter(text, games, "dod_look_cache_misses_total", "LOOKs which had to be rendered",
+					GameLogic::getLookCacheMisses);
+		}
+		return text.toString();
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return this.activeConnections.get();
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return this.connectionsOpened.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return this.bytesReceived.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return this.bytesSent.sum();
+	}
+
+	@Override
+	public int getCommandQueueDepth() {
+		final GameLobby lobby = this.lobby;
+		int depth = 0;
+		if (lobby != null) {
+			for (final GameActor game : lobby.getGames()) {
+				depth += game.getQueueDepth();
+			}
+		}
+		return depth;
+	}
+
+	@Override
+	public double getQueueWaitP50Micros() {
+		return this.queueWait.snapshot().percentile(50) / 1e3;
+	}
+
+	@Override
+	public double getQueueWaitP99Micros() {
+		return this.queueWait.snapshot().percentile(99) / 1e3;
+	}
+
+	@Override
+	public double getQueueWaitP999Micros() {
+		return this.queueWait.snapshot().percentile(99.9) / 1e3;
+	}
+
+	@Override
+	public long getChangesDropped() {
+		return this.changesDropped.get();
+	}
+
+	@Override
+	public long getDeltasCoalesced() {
+		return this.deltasCoalesced.get();
+	}
+
+	@Override
+	public long getSlowClientsDisconnected() {
+		return this.slowClientsDisconnected.get();
+	}
+
+	@Override
+	public long getPeakOutputBacklog() {
+		return this.peakOutputBacklog.get();
+	}
+
+	@Override
+	public long getViewNotificationsSent() {
+		return sumOverGames(GameLogic::getViewNotificationsSent);
+	}
+
+	@Override
+	public long getViewNotificationsSuppressed() {
+		return sumOverGames(GameLogic::getViewNotificationsSuppressed);
+	}
+
+	@Override
+	public long getLookCacheHits() {
+		return sumOverGames(GameLogic::getLookCacheHits);
+	}
+
+	@Override
+	public long getLookCacheMisses() {
+		return sumOverGames(GameLogic::getLookCacheMisses);
+	}
+
+	/**
+	 * Publishes a command's metrics over JMX, once the server's are
+	 */
+	private void register(CommandMetrics metrics) {
+		final MBeanServer server = this.mbeanServer;
+		if (server == null) {
+			return;
+		}
+		try {
+			final ObjectName name = objectName("Command", metrics.command());
+			if (!server.isRegistered(name)) {
+				server.registerMBean(metrics, name);
+			}
+		} catch (JMException e) {
+			// Another thread registered it first
+		}
+	}
+
+	private ObjectName objectName(String type, String name) throws JMException {
+		return new ObjectName("dod:type=" + type + ",port=" + this.serverPort
+				+ ((name == null) ? "" : ",name=" + ObjectName.quote(name)));
+	}
+
+	/**
+	 * Reads a counter of each game, the games only ever increase them
+	 */
+	private long sumOverGames(ToLongFunction<GameLogic> counter) {
+		final GameLobby lobby = this.lobby;
+		long sum = 0;
+		if (lobby != null) {
+			for (final GameActor game : lobby.getGames()) {
+				sum += counter.applyAsLong(game.getGame());
+			}
+		}
+		return sum;
+	}
+
+	private static void gameCounter(StringBuilder text, List<GameActor> games, String metric, String help,
+			ToLongFunction<GameLogic> counter) {
+		header(text, metric, "counter", help);
+		for (int i = 0; i < games.size(); i++) {
+			sample(text, metric, "game=\"" + i + "\"", counter.applyAsLong(games.get(i).getGame()));
+		}
+	}
+
+	private static void summary(StringBuilder text, String metric, String labels, LatencyHistogram latencies,
+			long totalNanos) {
+		for (final double quantile : QUANTILES) {
+			final String quantileLabel = "quantile=\"" + quantile + "\"";
+			sample(text, metric, (labels == null) ? quantileLabel : labels + "," + quantileLabel,
+					latencies.percentile(quantile * 100) / 1e9);
+		}
+		sample(text, metric + "_sum", labels, totalNanos / 1e9);
+		sample(text, metric + "_count", labels, latencies.count());
+	}
+
+	private static void header(StringBuilder text, String metric, String type, String help) {
+		text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String metric, String labels, long value) {
+		sampleName(text, metric, labels).append(value).append('\n');
+	}
+
+	private static void sample(StringBuilder text, String metric, String labels, double value) {
+		sampleName(text, metric, labels).append(value).append('\n');
+	}
+
+	private static StringBuilder sampleName(StringBuilder text, String metric, String labels) {
+		text.append(metric);
+		if (labels != null) {
+			text.append('{').append(labels).append('}');
+		}
+		return text.append(' ');
+	}
+}
@@ -0,0 +1,46 @@
+package dod;
+
+/**
+ * What the server as a whole is doing, as seen over JMX under dod:type=Server.
+ * Game counters are summed over every game the server hosts.
+ */
+public interface ServerMetricsMXBean {
+
+	int getActiveConnections();
+
+	long getConnectionsOpened();
+
+	long getBytesReceived();
+
+	long getBytesSent();
+
+	/**
+	 * @return the number of commands waiting for their game, over every game
+	 */
+	int getCommandQueueDepth();
+
+	/**
+	 * @return the median time commands waited for their game
+	 */
+	double getQueueWaitP50Micros();
+
+	double getQueueWaitP99Micros();
+
+	double getQueueWaitP999Micros();
+
+	long getChangesDropped();
+
+	long getDeltasCoalesced();
+
+	long getSlowClientsDisconnected();
+
+	long getPeakOutputBacklog();
+
+	long getViewNotificationsSent();
+
+	long getViewNotificationsSuppressed();
+
+	long getLookCacheHits();
+
+	long getLookCacheMisses();
+}
@@ -0,0 +1,256 @@
+package dod;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarises a flight recording of the server, made with e.g.
+ * java -XX:StartFlightRecording=filename=dod.jfr dod.DodServer 4444 defaultMap,
+ * into where the time went: how long each command waited for its game and
+ * then took to carry out, how long turns lasted, and how long telling the
+ * players about a change took and how many of them were told. The JDK's own
+ * events for lock contention, blocked socket writes and garbage collection
+ * are summarised alongside, since they explain most of the slow cases.
+ *
+ * A command's wait is matched up by taking the commands each connection sent
+ * in the order they were received, so a few commands already waiting when
+ * the recording started may be matched wrongly.
+ */
+public class TraceAnalyser {
+	private static final String USAGE = "Usage: java dod.TraceAnalyser <recording.jfr>";
+
+	// The JDK events worth showing with the server's own
+	private static final String JDK_EVENTS[] = { "jdk.JavaMonitorEnter", "jdk.ThreadPark", "jdk.SocketRead",
+			"jdk.SocketWrite", "jdk.GarbageCollection", "jdk.SafepointBegin" };
+
+	// Each connection's commands as they were received and applied, to be
+	// matched up once the whole recording has been read
+	private final Map<Long, ArrayDeque<Long>> received = new HashMap<Long, ArrayDeque<Long>>();
+	private final Map<Long, ArrayDeque<AppliedCommand>> applied = new HashMap<Long, ArrayDeque<AppliedCommand>>();
+
+	// Indexed by command name, with " FAIL" added for failed commands
+	private final Map<String, LatencyHistogram> waits = new TreeMap<String, LatencyHistogram>();
+	private final Map<String, LatencyHistogram> applies = new TreeMap<String, LatencyHistogram>();
+
+	private final Phase turns = new Phase();
+	// Counts the players skipped rather than how many were told
+	private final Phase endTurns = new Phase();
+	// Indexed by broadcast kind, then by JDK event name
+	private final Map<String, Phase> broadcasts = new TreeMap<String, Phase>();
+	private final Map<String, Phase> jdkEvents = new TreeMap<String, Phase>();
+
+	private static final class AppliedCommand {
+		final long startNanos;
+		final long nanos;
+		final String name;
+
+		AppliedCommand(long startNanos, long nanos, String name) {
+			this.startNanos = startNanos;
+			this.nanos = nanos;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * The time spent in one phase of the game loop, and how many players each
+	 * of them involved
+	 */
+	private static final class Phase {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long totalNanos = 0;
+		long players = 0;
+		long mostPlayers = 0;
+
+		void record(long nanos, int players) {
+			this.latencies.record(nanos);
+			this.totalNanos += nanos;
+			this.players += players;
+			this.mostPlayers = Math.max(this.mostPlayers, players);
+		}
+	}
+
+	/**
+	 * Prints the summary of a recording, e.g. java dod.TraceAnalyser dod.jfr
+	 * @param args the recording's file name
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		final TraceAnalyser analyser = new TraceAnalyser();
+		try {
+			analyser.read(Paths.get(args[0]));
+		} catch (IOException e) {
+			System.err.println("Cannot read the recording: " + e.getMessage());
+			System.exit(1);
+		}
+		analyser.print();
+	}
+
+	private void read(Path recording) throws IOException {
+		try (RecordingFile file = new RecordingFile(recording)) {
+			while (file.hasMoreEvents()) {
+				readEvent(file.readEvent());
+			}
+		}
+		matchCommands();
+	}
+
+	private void readEvent(RecordedEvent event) {
+		final String name = event.getEventType().getName();
+		final long nanos = event.getDuration().toNanos();
+		switch (name) {
+		case "dod.CommandReceived":
+			queueFor(this.received, event.getLong("userID")).add(nanosOf(event.getStartTime()));
+			break;
+		case "dod.CommandApplied": {
+			final String command = event.getString("command");
+			queueFor(this.applied, event.getLong("userID")).add(new AppliedCommand(nanosOf(event.getStartTime()),
+					nanos, event.getBoolean("failed") ? command + " FAIL" : command));
+			break;
+		}
+		case "dod.Turn":
+			this.turns.record(nanos, 0);
+			break;
+		case "dod.EndTurn":
+			this.endTurns.record(nanos, event.getInt("playersSkipped"));
+			break;
+		case "dod.Broadcast":
+			phaseFor(this.broadcasts, event.getString("kind")).record(nanos, event.getInt("recipients"));
+			break;
+		default:
+			for (final String jdkEvent : JDK_EVENTS) {
+				if (jdkEvent.equals(name)) {
+					phaseFor(this.jdkEvents, name).record(nanos, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Matches each applied command to the earliest command received from the
+	 * same connection before it, connections' commands being applied in the
+	 * order they were sent
+	 */
+	private void matchCommands() {
+		for (final Map.Entry<Long, ArrayDeque<AppliedCommand>> user : this.applied.entrySet()) {
+			// Events are not read in time order across threads
+			final long received[] = sorted(queueFor(this.received, user.getKey()));
+			final AppliedCommand applied[] = user.getValue().toArray(new AppliedCommand[0]);
+			Arrays.sort(applied, (a, b) -> Long.compare(a.startNanos, b.startNanos));
+
+			int next = 0;
+			for (final AppliedCommand command : applied) {
+				histogramFor(this.applies, command.name).record(command.nanos);
+				if ((next < received.length) && (received[next] <= command.startNanos)) {
+					histogramFor(this.waits, command.name).record(command.startNanos - received[next]);
+					next++;
+				}
+			}
+		}
+	}
+
+	private void print() {
+		System.out.println("Commands, from being received to being applied (wait) and then carried out (apply)");
+		System.out.println(String.format(Locale.ROOT, "%-22s %9s %9s %9s %9s %9s %9s %9s", "Command", "Count",
+				"Wait p50", "Wait p99", "Wait max", "Apply p50", "Apply p99", "Apply max"));
+		final LatencyHistogram allWaits = new LatencyHistogram();
+		final LatencyHistogram allApplies = new LatencyHistogram();
+		for (final Map.Entry<String, LatencyHistogram> command : this.applies.entrySet()) {
+			final LatencyHistogram waits = histogramFor(this.waits, command.getKey());
+			printCommandRow(command.getKey(), waits, command.getValue());
+			allWaits.add(waits);
+			allApplies.add(command.getValue());
+		}
+		printCommandRow("All", allWaits, allApplies);
+
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-22s %9s %11s %9s %9s %9s  %s", "Phase", "Count", "Total ms",
+				"p50", "p99", "Max", "Players"));
+		printPhaseRow("Turn", this.turns, "");
+		printPhaseRow("End turn", this.endTurns, "skipped");
+		for (final Map.Entry<String, Phase> kind : this.broadcasts.entrySet()) {
+			printPhaseRow("Broadcast " + kind.getKey(), kind.getValue(), "told");
+		}
+		for (final Map.Entry<String, Phase> event : this.jdkEvents.entrySet()) {
+			printPhaseRow(event.getKey(), event.getValue(), "");
+		}
+		System.out.println("Times are in microseconds. JDK events are only recorded above their thresholds,"
+				+ " e.g. 20ms for lock contention and socket writes by default.");
+	}
+
+	private static void printCommandRow(String name, LatencyHistogram waits, LatencyHistogram applies) {
+		System.out.println(String.format(Locale.ROOT, "%-22s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f", name,
+				applies.count(), waits.percentile(50) / 1e3, waits.percentile(99) / 1e3, waits.max() / 1e3,
+				applies.percentile(50) / 1e3, applies.percentile(99) / 1e3, applies.max() / 1e3));
+	}
+
+	/**
+	 * @param players
+	 *            what the phase's players were, e.g. "told", or empty if the
+	 *            phase involves none
+	 */
+	private static void printPhaseRow(String name, Phase phase, String players) {
+		final LatencyHistogram latencies = phase.latencies;
+		System.out.println(String.format(Locale.ROOT, "%-22s %9d %11.1f %9.1f %9.1f %9.1f  %s", name,
+				latencies.count(), phase.totalNanos / 1e6, latencies.percentile(50) / 1e3,
+				latencies.percentile(99) / 1e3, latencies.max() / 1e3,
+				(players.isEmpty() || (latencies.count() == 0)) ? "" : String.format(Locale.ROOT,
+						"%s %.1f avg, %d max", players, (double) phase.players / latencies.count(),
+						phase.mostPlayers)));
+	}
+
+	private static <T> ArrayDeque<T> queueFor(Map<Long, ArrayDeque<T>> queues, long userID) {
+		ArrayDeque<T> queue = queues.get(userID);
+		if (queue == null) {
+			queue = new ArrayDeque<T>();
+			queues.put(userID, queue);
+		}
+		return queue;
+	}
+
+	private static LatencyHistogram histogramFor(Map<String, LatencyHistogram> histograms, String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			histograms.put(name, histogram);
+		}
+		return histogram;
+	}
+
+	private static Phase phaseFor(Map<String, Phase> phases, String name) {
+		Phase phase = phases.get(name);
+		if (phase == null) {
+			phase = new Phase();
+			phases.put(name, phase);
+		}
+		return phase;
+	}
+
+	private static long[] sorted(ArrayDeque<Long> times) {
+		final long sorted[] = new long[times.size()];
+		int i = 0;
+		for (final long time : times) {
+			sorted[i++] = time;
+		}
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static long nanosOf(Instant time) {
+		return time.getEpochSecond() * 1000000000L + time.getNano();
+	}
+}
@@ -0,0 +1,32 @@
+package dod.game;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Sending one change to many players, recorded by Java Flight Recorder when a
+ * recording is running
+ */
+@Name("dod.Broadcast")
+@Label("Broadcast")
+@Category({ "Dungeons of Doom", "Game" })
+@Description("Telling the players about a shout, or about a player who joined, left or moved")
+final class BroadcastEvent extends Event {
+	static final String SHOUT = "shout";
+	static final String VIEW = "view";
+
+	@Label("Kind")
+	@Description("\"shout\" or \"view\"")
+	String kind;
+
+	@Label("Recipients")
+	@Description("The number of players sent the change")
+	int recipients;
+
+	@Label("Players")
+	@Description("The number of players in the game, including any who have left")
+	int players;
+}
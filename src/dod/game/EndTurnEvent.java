@@ -0,0 +1,30 @@
+package dod.game;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Passing the turn on to the next player who is still alive, recorded by Java
+ * Flight Recorder when a recording is running
+ */
+@Name("dod.EndTurn")
+@Label("End Turn")
+@Category({ "Dungeons of Doom", "Game" })
+@Description("Ending a turn and finding the next player still alive")
+final class EndTurnEvent extends Event {
+
+	@Label("Player")
+	@Description("The player who ended the turn")
+	int playerID;
+
+	@Label("Next Player")
+	@Description("The player given the turn, or -1 if everyone has left")
+	int nextPlayerID;
+
+	@Label("Players Skipped")
+	@Description("Players passed over because they have died or left")
+	int playersSkipped;
+}
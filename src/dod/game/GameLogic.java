@@ -10,9 +10,12 @@ import java.util.Random;
 
 /**
  * This class controls the game logic and interaction between players. Caution:
- * not thread-safe, but will need to be made so for a networked game.
+ * not thread-safe. The server confines each game to a single thread by only
+ * using it through a GameActor.
  */
 public class GameLogic {
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
 	Map map;
 
 	// Has a player won already?
@@ -20,19 +23,107 @@ public class GameLogic {
 
 	private final List<Player> players;
 
-	// The current player's turn, -1 indicates game not started
-	private int currentPlayer = -1;
+	// The current player's turn, NO_PLAYER before anyone joins or once
+	// everyone has left
+	private static final int NO_PLAYER = -1;
+	private int currentPlayer = NO_PLAYER;
+
+	// The current turn, recorded by Java Flight Recorder once it ends, or
+	// null when no recording is running
+	private TurnEvent turn = null;
+
+	// The flight recorder instruments event classes as they are loaded, and
+	// starting that up takes most of a second, so they are loaded along with
+	// GameLogic rather than on the game's thread when the first player joins
+	static {
+		new TurnEvent();
+		new EndTurnEvent();
+		new BroadcastEvent();
+	}
+
+	// Reused for every view change sent to the players
+	private final ViewDelta viewDelta = new ViewDelta();
+
+	// How far players can see without any items
+	private final int lookDistance;
+
+	// Chooses start locations, seeded so a game can be replayed
+	private final long seed;
+	private final Random random;
+
+	// The number of tiles a player can stand on, one player to a tile
+	private final int maxPlayers;
+
+	// The furthest any player can see, so only players this close to a
+	// change need to be looked at. It never shrinks, which is safe.
+	private int maxLookDistance = 0;
+
+	// How many view changes were sent, and how many players were not sent
+	// one because they could not see the change. These are read by
+	// monitoring from other threads.
+	private volatile long viewNotificationsSent = 0;
+	private volatile long viewNotificationsSuppressed = 0;
+	// The players who have not left, who are the ones a change could be sent to
+	private int livePlayers = 0;
+
+	// Each player's last LOOK, indexed by player ID, and how often one could
+	// be sent again. The counts are read by monitoring from other threads.
+	private final List<LookCache> lookCaches = new ArrayList<LookCache>();
+	private volatile long lookCacheHits = 0;
+	private volatile long lookCacheMisses = 0;
 
 	/**
 	 * Constructor that specifies the map which the game should be played on.
 	 * 
 	 * @param mapFile
-	 *            The name of the file to load the map from.
+	 *            The name of the file to load the map from, either an ASCII
+	 *            or a binary map.
 	 * @throws FileNotFoundException
 	 *             , ParseException
 	 */
 	public GameLogic(String mapFile) throws FileNotFoundException, ParseException {
-		this.map = new Map(mapFile);
+		this(mapFile, Player.DEFAULT_LOOK_DISTANCE);
+	}
+
+	/**
+	 * Constructor for a game where players see further, or less far, than
+	 * usual. The field of view of every distance is worked out once, so a
+	 * large distance only costs as much as the bigger LOOK replies.
+	 * 
+	 * @param mapFile
+	 *            The name of the file to load the map from
+	 * @param lookDistance
+	 *            how far players can see without a lantern
+	 * @throws FileNotFoundException
+	 *             , ParseException
+	 */
+	public GameLogic(String mapFile, int lookDistance) throws FileNotFoundException, ParseException {
+		this(mapFile, lookDistance, new Random().nextLong());
+	}
+
+	/**
+	 * Constructor for a game whose start locations are chosen by a random
+	 * number generator with the given seed, so the game plays out the same
+	 * way every time it is sent the same commands in the same order.
+	 * 
+	 * @param mapFile
+	 *            The name of the file to load the map from
+	 * @param lookDistance
+	 *            how far players can see without a lantern
+	 * @param seed
+	 *            the seed of the random number generator, see getSeed
+	 * @throws FileNotFoundException
+	 *             , ParseException
+	 */
+	public GameLogic(String mapFile, int lookDistance, long seed) throws FileNotFoundException, ParseException {
+		if (lookDistance < 0) {
+			throw new IllegalArgumentException("look distance must not be negative");
+		}
+		this.lookDistance = lookDistance;
+		this.seed = seed;
+		this.random = new Random(seed);
+		this.map = Map.load(mapFile);
+		this.maxPlayers = countWalkableTiles();
 
 		// Check if there is enough gold to win
 		if (this.map.remainingGold() < this.map.getGoal()) {
@@ -51,23 +142,29 @@ public class GameLogic {
 	 *            interactions communicated
 	 * 
 	 * @return the id of the player
+	 * @throws IllegalStateException
+	 *             if the game is full, see getMaxPlayers
 	 */
 	public int addPlayer(PlayerListener player) {
 		final int playerID = this.players.size();
+		final Location startLocation = generateRandomStartLocation();
 
-		this.players.add(new Player("Player " + playerID,
-				generateRandomStartLocation(), player));
+		this.players.add(new Player("Player " + playerID, startLocation,
+				player, this.lookDistance));
+		this.lookCaches.add(new LookCache());
+		this.livePlayers++;
+		this.map.setOccupant(startLocation, playerID);
+		updateMaxLookDistance(this.players.get(playerID));
 
 		if (this.players.size() == 1) {
 			startNewGame();
+		} else if (this.currentPlayer == NO_PLAYER) {
+			this.currentPlayer = playerID;
+			startTurn();
 		}
-		// Tell all the other clients to update their game board when
-		// another player joins the game
-		for(Player p: players) {
-			if(!this.players.get(playerID).equals(p)) {
-				p.change();
-			}
-		}
+		// Tell the other players who can see the new player to update their
+		// game board
+		notifyViewers(playerID, null, startLocation);
 
 		return playerID;
 	}
@@ -77,7 +174,15 @@ public class GameLogic {
 	 * the reference is held. This might need some changing for a network.
 	 */
 	public void removePlayer(int playerID) {
-		this.players.get(playerID).kill();
+		final Player player = this.players.get(playerID);
+		if (!player.isDead()) {
+			this.livePlayers--;
+		}
+		player.kill();
+
+		// Dead players no longer take up a tile
+		this.map.clearOccupant(player.getLocation(), playerID);
+		notifyViewers(playerID, player.getLocation(), null);
 
 		if (this.currentPlayer == playerID) {
 			// Advance turn to handle death on player's turn
@@ -89,7 +194,7 @@ public class GameLogic {
 	 * Starts a new game of the Dungeon of Dooooooooooooom.
 	 */
 	public void startNewGame() {
-		if (this.currentPlayer != -1) {
+		if (this.currentPlayer != NO_PLAYER) {
 			throw new RuntimeException("The game has already started.");
 		}
 
@@ -126,48 +231,82 @@ public class GameLogic {
 	 * @return the part of the map that the player can currently see.
 	 */
 	public String clientLook(int playerID) {
+		final StringBuilder lookReply = new StringBuilder();
+		clientLook(playerID, lookReply);
+		return lookReply.toString();
+	}
+
+	/**
+	 * Handles the client message LOOK, appending the portion of the map that
+	 * the player can currently see to the buffer. Nothing is allocated, so the
+	 * caller can reuse the same buffer for every LOOK.
+	 * 
+	 * @param lookReply
+	 *            the buffer to append the player's view to
+	 */
+	public void clientLook(int playerID, StringBuilder lookReply) {
+		look(playerID).appendTo(lookReply, LINE_SEPARATOR);
+	}
+
+	/**
+	 * Handles the client message LOOK, giving the tiles the player can
+	 * currently see rather than rendering them as text, so they can be sent
+	 * in some other form.
+	 * 
+	 * @return the tiles row by row, each the character a LOOK reply shows.
+	 *         The array is reused by the player's next LOOK, so is only valid
+	 *         until then.
+	 */
+	public char[] clientLookTiles(int playerID) {
+		return look(playerID).tiles();
+	}
+
+	/**
+	 * Works out the tiles the player can currently see. A player who has not
+	 * moved, whose look distance is the same and who is near no change to the
+	 * map since their last LOOK is given the same tiles again, without
+	 * rendering them.
+	 * 
+	 * @return the player's LookCache, holding the tiles
+	 */
+	private LookCache look(int playerID) {
 		assertPlayerExists(playerID);
 
 		final Player player = this.players.get(playerID);
 
 		// Work out how far the player can see
 		final int distance = player.lookDistance();
+		final boolean[] visible = VisibilityMasks.forDistance(distance);
+
+		final int playerCol = player.getLocation().getCol();
+		final int playerRow = player.getLocation().getRow();
+
+		final long version = this.map.regionVersion(playerCol - distance, playerRow - distance,
+				playerCol + distance, playerRow + distance);
+		final LookCache cache = this.lookCaches.get(playerID);
+		if (cache.matches(playerCol, playerRow, distance, version)) {
+			this.lookCacheHits++;
+			return cache;
+		}
+		this.lookCacheMisses++;
+		final char tiles[] = cache.store(playerCol, playerRow, distance, version);
+
+		// The cell of the visibility mask we are up to, which is also the tile
+		int cell = 0;
 
-		String lookReply = "";
 		// Iterate through the rows.
 		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
-			String line = "";
+			final int row = playerRow + rowOffset;
 
 			// Iterate through the columns.
-			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
-
-				// Work out the location
-				final Location location = player.getLocation().atOffset(
-						colOffset, rowOffset);
-
-				char content = '?';
-				if (!player.canSeeTile(rowOffset, colOffset)) {
-					// It's outside the FoV so we don't know what it is.
-					content = 'X';
-				} else if (!this.map.insideMap(location)) {
-					// It's outside the map, so just call it a wall.
-					content = '#';
-				} else if (otherPlayerOnTile(location, playerID)) {
-					content = 'P';
-				} else {
-					// Look up and see what's on the map
-					content = this.map.getMapCell(location).toChar();
-				}
+			for (int colOffset = -distance; colOffset <= distance; ++colOffset, ++cell) {
+				final int col = playerCol + colOffset;
 
-				// Add to the line
-				line += content;
+				// If it's outside the FoV we don't know what it is.
+				tiles[cell] = visible[cell] ? tileContent(col, row, playerID) : 'X';
 			}
-
-			// Send a line of the look message
-			lookReply += line + System.getProperty("line.separator");
 		}
-
-		return lookReply;
+		return cache;
 	}
 
 	/**
@@ -210,16 +349,13 @@ public class GameLogic {
 		player.decrementAp();
 
 		// Move the player
-		player.setLocation(location);
-
-		// Every time a player moves we want to send a change events to
-		// every other player so they can update their map automatically
-		for(Player p: players) {
-			if(!this.players.get(playerID).equals(p)) {
-				p.change();
-			}
-		}
+		final Location oldLocation = player.getLocation();
+		movePlayer(playerID, location);
 
+		// Every time a player moves the other players who can see it are
+		// sent the tiles that changed, so they can update their map
+		// automatically
+		notifyViewers(playerID, oldLocation, location);
 
 		advanceTurn(playerID);
 		return;
@@ -308,6 +444,7 @@ public class GameLogic {
 
 		player.giveItem(item);
 		playersTile.removeItem();
+		updateMaxLookDistance(player);
 
 		player.decrementAp();
 
@@ -321,9 +458,20 @@ public class GameLogic {
 	 *            The message to be shouted
 	 */
 	public void clientShout(String message) {
+		final BroadcastEvent broadcast = new BroadcastEvent();
+		broadcast.begin();
+
 		for (final Player player : this.players) {
 			player.sendMessage(message);
 		}
+
+		broadcast.end();
+		if (broadcast.shouldCommit()) {
+			broadcast.kind = BroadcastEvent.SHOUT;
+			broadcast.recipients = this.players.size();
+			broadcast.players = this.players.size();
+			broadcast.commit();
+		}
 	}
 
 	/**
@@ -332,19 +480,47 @@ public class GameLogic {
 	 * Just sets the AP to zero and advances as normal.
 	 */
 	public void clientEndTurn(int playerID) {
+		final EndTurnEvent event = new EndTurnEvent();
+		event.begin();
+
 		assertPlayerExists(playerID);
 		this.players.get(playerID).endTurn();
+		if (this.turn != null) {
+			this.turn.commit();
+			this.turn = null;
+		}
 
 		// Advance to the next alive player
-		do {
+		int skipped = 0;
+		boolean found = false;
+		while (!found && (skipped < this.players.size())) {
 			this.currentPlayer++;
 
 			if (this.currentPlayer >= this.players.size()) {
 				this.currentPlayer = 0;
 			}
-		} while (this.players.get(this.currentPlayer).isDead());
+			if (this.players.get(this.currentPlayer).isDead()) {
+				skipped++;
+			} else {
+				found = true;
+			}
+		}
+		if (!found) {
+			// Everyone has left, the next player to join gets the turn
+			this.currentPlayer = NO_PLAYER;
+		}
 
-		startTurn();
+		event.end();
+		if (event.shouldCommit()) {
+			event.playerID = playerID;
+			event.nextPlayerID = this.currentPlayer;
+			event.playersSkipped = skipped;
+			event.commit();
+		}
+
+		if (found) {
+			startTurn();
+		}
 	}
 
 	/**
@@ -371,7 +547,11 @@ public class GameLogic {
 			throw new CommandException("cannot walk on this tile");
 		}
 
-		this.players.get(playerID).setLocation(location);
+		if (otherPlayerOnTile(location, playerID)) {
+			throw new CommandException("another player is on this tile");
+		}
+
+		movePlayer(playerID, location);
 	}
 
 	/**
@@ -383,27 +563,52 @@ public class GameLogic {
 		return this.map.getGoal();
 	}
 
+	/**
+	 * @return how far players can see without a lantern
+	 */
+	public int getLookDistance() {
+		return this.lookDistance;
+	}
+
+	/**
+	 * @return the most players the game can hold at once, one on every tile
+	 *         they can walk on. Never changes, so can be read from any thread.
+	 */
+	public int getMaxPlayers() {
+		return this.maxPlayers;
+	}
+
+	/**
+	 * @return the seed start locations are chosen with, which recreates the
+	 *         game when given to the constructor
+	 */
+	public long getSeed() {
+		return this.seed;
+	}
+
 	/**
 	 * Generates a randomised start location
 	 * 
 	 * @return a random location where a player can start
+	 * @throws IllegalStateException
+	 *             if every tile is taken, see getMaxPlayers
 	 */
 	private Location generateRandomStartLocation() {
-		if (!atLeastOneNonWallLocation()) {
+		// Every live player stands on a tile of their own
+		if (this.livePlayers >= this.maxPlayers) {
 			throw new IllegalStateException(
 					"There is no free tile available for the player to be placed");
 		}
 
 		while (true) {
 			// Generate a random location
-			final Random random = new Random();
-			final int randomRow = random.nextInt(this.map.getMapHeight());
-			final int randomCol = random.nextInt(this.map.getMapWidth());
+			final int randomRow = this.random.nextInt(this.map.getMapHeight());
+			final int randomCol = this.random.nextInt(this.map.getMapWidth());
 
 			final Location location = new Location(randomCol, randomRow);
 
 			if (this.map.getMapCell(location).isWalkable()
-					&& !otherPlayerOnTile(location, -1)) {
+					&& (this.map.getOccupant(randomCol, randomRow) == Map.NO_OCCUPANT)) {
 				// If it's not a wall then we can put them there
 				return location;
 			}
@@ -411,35 +616,206 @@ public class GameLogic {
 	}
 
 	/**
-	 * Searches a possible tile to use by the player, i.e. non-wall. The map is
+	 * Counts the tiles a player could be placed on, i.e. non-wall. The map is
 	 * traversed from (0,0) to (maxY,MaxX).
 	 * 
-	 * @return true if there is at least one non-wall location, false otherwise
+	 * @return the number of non-wall locations
 	 */
-	private boolean atLeastOneNonWallLocation() {
+	private int countWalkableTiles() {
+		int walkable = 0;
 		for (int x = 0; x < this.map.getMapWidth(); x++) {
 			for (int y = 0; y < this.map.getMapHeight(); y++) {
-
-				if (this.map.getMapCell(new Location(x, y)).isWalkable()) {
-					// If it's not a wall then we can put them there
-					return true;
+				if (this.map.getMapCell(x, y).isWalkable()) {
+					walkable++;
 				}
 			}
 		}
 
-		return false;
+		return walkable;
 	}
 
 	private boolean otherPlayerOnTile(Location location, int currentPlayerID) {
-		for (int otherPlayerID = 0; otherPlayerID < this.players.size(); otherPlayerID++) {
-			if ((otherPlayerID != currentPlayerID)
-					&& this.players.get(otherPlayerID).getLocation()
-							.equals(location)) {
-				return true;
+		return otherPlayerOnTile(location.getCol(), location.getRow(), currentPlayerID);
+	}
+
+	private boolean otherPlayerOnTile(int col, int row, int currentPlayerID) {
+		final int occupant = this.map.getOccupant(col, row);
+
+		return (occupant != Map.NO_OCCUPANT) && (occupant != currentPlayerID);
+	}
+
+	/**
+	 * Works out what a player sees on a tile inside their field of view
+	 * 
+	 * @return the character for the tile, as in a LOOK reply
+	 */
+	private char tileContent(int col, int row, int playerID) {
+		if (!this.map.insideMap(col, row)) {
+			// It's outside the map, so just call it a wall.
+			return '#';
+		}
+		if (otherPlayerOnTile(col, row, playerID)) {
+			return 'P';
+		}
+		// Look up and see what's on the map
+		return this.map.toChar(col, row);
+	}
+
+	/**
+	 * @return the number of view changes sent to players
+	 */
+	public long getViewNotificationsSent() {
+		return this.viewNotificationsSent;
+	}
+
+	/**
+	 * @return the number of times a player was not told about another
+	 *         player joining, leaving or moving, because they could not see it
+	 */
+	public long getViewNotificationsSuppressed() {
+		return this.viewNotificationsSuppressed;
+	}
+
+	/**
+	 * @return the number of LOOKs answered with the player's previous reply
+	 */
+	public long getLookCacheHits() {
+		return this.lookCacheHits;
+	}
+
+	/**
+	 * @return the number of LOOKs which had to be rendered
+	 */
+	public long getLookCacheMisses() {
+		return this.lookCacheMisses;
+	}
+
+	/**
+	 * Sends every other player who can see them the tiles changed by a player
+	 * joining, leaving or moving. Players who can see neither tile are not
+	 * told anything, since their view is unchanged.
+	 * 
+	 * Rather than checking every player, only the tiles around the change
+	 * that are close enough for someone to see it are searched for players,
+	 * using the map's record of who is on which tile.
+	 * 
+	 * @param playerID
+	 *            the player who joined, left or moved
+	 * @param from
+	 *            the tile the player left, or null if they joined
+	 * @param to
+	 *            the tile the player is now on, or null if they left
+	 */
+	private void notifyViewers(int playerID, Location from, Location to) {
+		final BroadcastEvent broadcast = new BroadcastEvent();
+		broadcast.begin();
+
+		int notified = 0;
+		if (from != null) {
+			notified += notifyViewersAround(playerID, from, from, to, null);
+		}
+		if (to != null) {
+			notified += notifyViewersAround(playerID, to, from, to, from);
+		}
+
+		this.viewNotificationsSent += notified;
+		// Players who have left could not have been told, nor could the
+		// player who changed, unless they are the one leaving
+		final int others = this.livePlayers - (this.players.get(playerID).isDead() ? 0 : 1);
+		this.viewNotificationsSuppressed += others - notified;
+
+		broadcast.end();
+		if (broadcast.shouldCommit()) {
+			broadcast.kind = BroadcastEvent.VIEW;
+			broadcast.recipients = notified;
+			broadcast.players = this.players.size();
+			broadcast.commit();
+		}
+	}
+
+	/**
+	 * Sends the changed tiles to the players near a tile
+	 * 
+	 * @param centre
+	 *            the tile to search around
+	 * @param done
+	 *            players near this tile have already been sent the changes,
+	 *            or null
+	 * @return the number of players sent the changes
+	 */
+	private int notifyViewersAround(int playerID, Location centre, Location from,
+			Location to, Location done) {
+		final int distance = this.maxLookDistance;
+		final int firstRow = Math.max(centre.getRow() - distance, 0);
+		final int lastRow = Math.min(centre.getRow() + distance, this.map.getMapHeight() - 1);
+		final int firstCol = Math.max(centre.getCol() - distance, 0);
+		final int lastCol = Math.min(centre.getCol() + distance, this.map.getMapWidth() - 1);
+
+		int notified = 0;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				final int viewerID = this.map.getOccupant(col, row);
+				if ((viewerID == Map.NO_OCCUPANT) || (viewerID == playerID)) {
+					continue;
+				}
+				if ((done != null) && (Math.abs(col - done.getCol()) <= distance)
+						&& (Math.abs(row - done.getRow()) <= distance)) {
+					continue;
+				}
+
+				final Player viewer = this.players.get(viewerID);
+				this.viewDelta.clear();
+				addVisibleTile(viewer, viewerID, from);
+				addVisibleTile(viewer, viewerID, to);
+
+				if (this.viewDelta.size() > 0) {
+					viewer.change(this.viewDelta);
+					notified++;
+				}
 			}
 		}
+		return notified;
+	}
+
+	private void updateMaxLookDistance(Player player) {
+		this.maxLookDistance = Math.max(this.maxLookDistance, player.lookDistance());
+	}
+
+	/**
+	 * Adds the tile to the view delta if the viewer can see it
+	 */
+	private void addVisibleTile(Player viewer, int viewerID, Location tile) {
+		if (tile == null) {
+			return;
+		}
+
+		final int distance = viewer.lookDistance();
+		final int colOffset = tile.getCol() - viewer.getLocation().getCol();
+		final int rowOffset = tile.getRow() - viewer.getLocation().getRow();
+
+		// The same field of view as a LOOK
+		if ((Math.abs(colOffset) <= distance) && (Math.abs(rowOffset) <= distance)
+				&& viewer.canSeeTile(rowOffset, colOffset)) {
+			this.viewDelta.add(colOffset, rowOffset,
+					tileContent(tile.getCol(), tile.getRow(), viewerID));
+		}
+	}
 
-		return false;
+	/**
+	 * Moves a player to a new location, keeping the map's record of which
+	 * player is on which tile up to date.
+	 * 
+	 * @param playerID
+	 *            the player to move
+	 * @param location
+	 *            the player's new location
+	 */
+	private void movePlayer(int playerID, Location location) {
+		final Player player = this.players.get(playerID);
+
+		this.map.clearOccupant(player.getLocation(), playerID);
+		player.setLocation(location);
+		this.map.setOccupant(location, playerID);
 	}
 
 	/**
@@ -491,6 +867,12 @@ public class GameLogic {
 	}
 
 	private void startTurn() {
+		final TurnEvent turn = new TurnEvent();
+		if (turn.isEnabled()) {
+			turn.playerID = this.currentPlayer;
+			turn.begin();
+			this.turn = turn;
+		}
 		this.players.get(this.currentPlayer).startTurn();
 	}
 
@@ -0,0 +1,168 @@
+package dod.game;
+
+import dod.game.items.GameItem;
+
+import java.util.Arrays;
+
+/**
+ * A sparse table of the items lying on the map, keyed by cell index. Most
+ * cells never hold an item, so rather than a reference per cell the map keeps
+ * this small open-addressing hash table, which also avoids boxing the keys.
+ */
+final class ItemTable {
+	private static final int NO_CELL = -1;
+	// The most items a table can be sized for, keeping it at most half full
+	// without its capacity overflowing
+	static final int MAX_ITEMS = 1 << 29;
+
+	// Parallel arrays, a slot is free when its cell is NO_CELL
+	private int cells[];
+	private GameItem items[];
+
+	private int size = 0;
+
+	/**
+	 * Creates an empty table
+	 *
+	 * @param expectedItems
+	 *            the number of items expected, to size the table up front
+	 * @throws IllegalArgumentException
+	 *             if more than MAX_ITEMS are expected
+	 */
+	ItemTable(int expectedItems) {
+		if (expectedItems > MAX_ITEMS) {
+			throw new IllegalArgumentException("too many items: " + expectedItems);
+		}
+		int capacity = 16;
+		while (capacity < expectedItems * 2) {
+			capacity *= 2;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * @return the item on the cell, or null if there is none
+	 */
+	GameItem get(int cell) {
+		for (int slot = slotFor(cell);; slot = next(slot)) {
+			if (this.cells[slot] == cell) {
+				return this.items[slot];
+			}
+			if (this.cells[slot] == NO_CELL) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Puts an item on a cell, replacing anything already there
+	 */
+	void put(int cell, GameItem item) {
+		if ((this.size + 1) * 2 > this.cells.length) {
+			resize(this.cells.length * 2);
+		}
+
+		int slot = slotFor(cell);
+		while ((this.cells[slot] != NO_CELL) && (this.cells[slot] != cell)) {
+			slot = next(slot);
+		}
+
+		if (this.cells[slot] == NO_CELL) {
+			this.size++;
+		}
+		this.cells[slot] = cell;
+		this.items[slot] = item;
+	}
+
+	/**
+	 * Removes the item from a cell
+	 *
+	 * @return the item that was removed, or null if there was none
+	 */
+	GameItem remove(int cell) {
+		int slot = slotFor(cell);
+		while (this.cells[slot] != cell) {
+			if (this.cells[slot] == NO_CELL) {
+				return null;
+			}
+			slot = next(slot);
+		}
+
+		final GameItem removed = this.items[slot];
+		this.size--;
+
+		// Shift later entries of the probe sequence back into the gap, so
+		// lookups never stop early at it
+		int gap = slot;
+		for (int probe = next(gap); this.cells[probe] != NO_CELL; probe = next(probe)) {
+			final int home = slotFor(this.cells[probe]);
+			final boolean movable = (gap <= probe) ? ((home <= gap) || (home > probe))
+					: ((home <= gap) && (home > probe));
+			if (movable) {
+				this.cells[gap] = this.cells[probe];
+				this.items[gap] = this.items[probe];
+				gap = probe;
+			}
+		}
+		this.cells[gap] = NO_CELL;
+		this.items[gap] = null;
+
+		return removed;
+	}
+
+	/**
+	 * @return the number of items in the table
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of slots, for iterating with cellAt and itemAt
+	 */
+	int slots() {
+		return this.cells.length;
+	}
+
+	/**
+	 * @return the cell stored in the slot, or -1 if the slot is free
+	 */
+	int cellAt(int slot) {
+		return this.cells[slot];
+	}
+
+	/**
+	 * @return the item stored in the slot, or null if the slot is free
+	 */
+	GameItem itemAt(int slot) {
+		return this.items[slot];
+	}
+
+	private int slotFor(int cell) {
+		// Fibonacci hashing spreads neighbouring cells across the table
+		return (cell * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(this.cells.length));
+	}
+
+	private int next(int slot) {
+		return (slot + 1) & (this.cells.length - 1);
+	}
+
+	private void allocate(int capacity) {
+		this.cells = new int[capacity];
+		this.items = new GameItem[capacity];
+		Arrays.fill(this.cells, NO_CELL);
+	}
+
+	private void resize(int capacity) {
+		final int oldCells[] = this.cells;
+		final GameItem oldItems[] = this.items;
+
+		allocate(capacity);
+		this.size = 0;
+		for (int slot = 0; slot < oldCells.length; slot++) {
+			if (oldCells[slot] != NO_CELL) {
+				put(oldCells[slot], oldItems[slot]);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package dod.game;
+
+/**
+ * A player's last LOOK, as the tiles they could see, together with what it
+ * depended on: where the player stood, how far they could see and the version
+ * of the part of the map they could see. While none of those change, the same
+ * tiles can be sent again without rendering them.
+ */
+final class LookCache {
+	private int col = -1;
+	private int row = -1;
+	private int distance = -1;
+	private long version = -1;
+	// Row by row, each the character a LOOK reply shows
+	private char tiles[] = new char[0];
+
+	/**
+	 * @return true if the cached tiles are for the same view
+	 */
+	boolean matches(int col, int row, int distance, long version) {
+		return (this.col == col) && (this.row == row) && (this.distance == distance)
+				&& (this.version == version);
+	}
+
+	/**
+	 * @return the cached tiles, row by row
+	 */
+	char[] tiles() {
+		return this.tiles;
+	}
+
+	/**
+	 * Appends the cached tiles to the buffer as the rows of a LOOK reply,
+	 * each followed by the line separator
+	 */
+	void appendTo(StringBuilder lookReply, String lineSeparator) {
+		final int width = 2 * this.distance + 1;
+		for (int start = 0; start < this.tiles.length; start += width) {
+			lookReply.append(this.tiles, start, width).append(lineSeparator);
+		}
+	}
+
+	/**
+	 * Replaces the cached view, the caller then renders the tiles
+	 *
+	 * @return the array to render the tiles into, row by row
+	 */
+	char[] store(int col, int row, int distance, long version) {
+		this.col = col;
+		this.row = row;
+		this.distance = distance;
+		this.version = version;
+		final int width = 2 * distance + 1;
+		if (this.tiles.length != width * width) {
+			this.tiles = new char[width * width];
+		}
+		return this.tiles;
+	}
+}
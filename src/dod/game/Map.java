@@ -1,36 +1,132 @@
 package dod.game;
 
+import dod.game.Tile.TileType;
+import dod.game.items.GameItem;
 import dod.game.items.Gold;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.util.Arrays;
 
 /**
  * Class containing the map used by the game engine. Allows for reading in ASCII
  * art maps from a file, or just using the default map.
+ *
+ * Maps can also be stored in a compact binary format, which loads much faster
+ * for big maps. It is written by writeBinary, and made up of
+ *
+ *   magic "DODM", version byte, name (modified UTF-8, as DataOutput.writeUTF),
+ *   goal, width, height and amount of gold (big-endian ints),
+ *   the tile types in row-major order as runs of (type ordinal byte, varint
+ *   run length),
+ *   the number of items (int), then for each item in cell order the varint
+ *   distance from the previous item's cell and the item's character.
  */
 
 public class Map {
     // The name of the map
     private String name;
 
-    // The tiles of the map, stored in row-major order, i.e. [row][col]
-    private Tile map[][];
+    // The tiles of the map, one byte per cell stored in row-major order, i.e.
+    // [row * width + col]. The low bits are the ordinal of the tile type,
+    // HAS_ITEM is set when the items table holds an item for the cell.
+    private byte tiles[];
+    private int width;
+    private int height;
+
+    // The items lying on the map, keyed by cell index
+    private ItemTable items;
+    // The number of items of each type left on the map, indexed by the item's
+    // character, kept up to date so nothing has to scan the map to count them
+    private final int itemCounts[] = new int[128];
+
+    private static final int TYPE_MASK = 0x0f;
+    private static final int HAS_ITEM = 0x10;
+    private static final TileType TILE_TYPES[] = TileType.values();
+
+    private static final char GOLD = new Gold().toChar();
+
+    // The tile byte for each ASCII character of a map file that is a plain
+    // tile type, -1 for anything else, e.g. an item
+    private static final byte TILE_FOR_CHAR[] = new byte[128];
+
+    static {
+        Arrays.fill(TILE_FOR_CHAR, (byte) -1);
+        for (final TileType type : TILE_TYPES) {
+            TILE_FOR_CHAR[type.toChar()] = (byte) type.ordinal();
+        }
+    }
 
     // The number of gold required to win
     private int goal;
 
+    // The ID of the player standing on each tile plus one, so a freshly
+    // allocated array means nobody is there. Kept up to date by the game so
+    // finding a player on a tile doesn't mean searching through every player.
+    // The map is split into square blocks, and a block's array is only
+    // allocated once a player enters it, so big maps with few players don't
+    // pay for a full grid.
+    private int occupants[][];
+    private int blocksAcross;
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+
+    // A counter for each square region of the map, bumped whenever what a
+    // player would see in the region changes, i.e. an item is picked up or a
+    // player arrives or leaves. Anything worked out from a region, e.g. a
+    // player's view, is still right while the region's counter is the same.
+    private int regionVersions[];
+    private int regionsAcross;
+
+    private static final int REGION_SHIFT = 3;
+
+    // Occupant value for a tile without a player on it
+    public static final int NO_OCCUPANT = -1;
+
     // The lines containing the name and goal, and rest of the map
     private static final int NAMELINE = 0;
     private static final int GOALLINE = 1;
     private static final int MAPBEGINLINE = 2;
 
-    // Minimum number of lines
-    private static final int MINLINES = 3;
+    // Identifies a binary map file, the bytes "DODM"
+    private static final int BINARY_MAGIC = 0x444F444D;
+    private static final int BINARY_VERSION = 1;
+
+    /**
+     * Loads a map from the file specified, which may be either an ASCII or a
+     * binary map.
+     *
+     * @param filename
+     *            The name of the file to load the map from
+     * @return the map
+     * @throws ParseException
+     * @throws FileNotFoundException
+     */
+    public static Map load(String filename) throws ParseException,
+            FileNotFoundException {
+        final MappedByteBuffer file = mapFile(filename);
+
+        if ((file.remaining() >= 4) && (file.getInt(0) == BINARY_MAGIC)) {
+            final Map map = new Map();
+            map.readBinary(file);
+            return map;
+        }
+        return new Map(file);
+    }
 
     /**
      * Creates a map from the file specified. Note that this is not robust...
@@ -41,37 +137,52 @@ public class Map {
      * @throws FileNotFoundException
      */
     public Map(String filename) throws ParseException, FileNotFoundException {
-        final List<String> lines = readFile(filename);
+        this(mapFile(filename));
+    }
+
+    /**
+     * Creates a map from the contents of an ASCII map file
+     *
+     * @param file
+     *            The contents of the map file
+     * @throws ParseException
+     */
+    private Map(MappedByteBuffer file) throws ParseException {
+        // The first line should always be the name of the map.
+        parseMapName(readHeaderLine(file, NAMELINE));
+
+        // The second line should be the goal.
+        parseMapGoal(readHeaderLine(file, GOALLINE));
 
         // Good programmers always check this...
-        if (lines.size() < MINLINES) {
+        if (!file.hasRemaining()) {
             throw new ParseException(
                     "a map file must contain at least three lines",
-                    lines.size());
+                    MAPBEGINLINE);
         }
 
-        // The first line should always be the name of the map.
-        parseMapName(lines.get(NAMELINE));
-
-        // The second line should be the goal.
-        parseMapGoal(lines.get(GOALLINE));
-
         // Read in the map data from the file
-        readMap(lines);
+        readMap(file);
+    }
+
+    /**
+     * Creates an empty map, to be filled in by readBinary
+     */
+    private Map() {
     }
 
     /**
      * @return The width of the map
      */
     public int getMapWidth() {
-        return this.map[0].length;
+        return this.width;
     }
 
     /**
      * @return The height of the map
      */
     public int getMapHeight() {
-        return this.map.length;
+        return this.height;
     }
 
     /**
@@ -80,7 +191,66 @@ public class Map {
      * @return the contents of the cell
      */
     public Tile getMapCell(Location location) {
-        return this.map[location.getRow()][location.getCol()];
+        return getMapCell(location.getCol(), location.getRow());
+    }
+
+    /**
+     * Returns the contents of the cell of the map at the column and row
+     *
+     * @return the contents of the cell
+     */
+    public Tile getMapCell(int col, int row) {
+        return new Tile(this, col, row);
+    }
+
+    /**
+     * @return the type of the tile at the column and row
+     */
+    public TileType getTileType(int col, int row) {
+        return TILE_TYPES[this.tiles[row * this.width + col] & TYPE_MASK];
+    }
+
+    /**
+     * @return the item lying on the tile at the column and row, or null
+     */
+    public GameItem getItem(int col, int row) {
+        final int cell = row * this.width + col;
+
+        if ((this.tiles[cell] & HAS_ITEM) == 0) {
+            return null;
+        }
+        return this.items.get(cell);
+    }
+
+    /**
+     * Removes the item from the tile at the column and row, e.g. after a
+     * successful pickup.
+     */
+    public void removeItem(int col, int row) {
+        final int cell = row * this.width + col;
+
+        if ((this.tiles[cell] & HAS_ITEM) == 0) {
+            // There is no item to pick up
+            throw new IllegalStateException("there is no item to pick up");
+        }
+        this.itemCounts[this.items.remove(cell).toChar()]--;
+        this.tiles[cell] &= ~HAS_ITEM;
+        regionChanged(col, row);
+    }
+
+    /**
+     * Turn the tile at the column and row into a char, as in the map file
+     *
+     * @return the item on the tile if there is one, otherwise the tile type
+     */
+    public char toChar(int col, int row) {
+        final int cell = row * this.width + col;
+        final int tile = this.tiles[cell];
+
+        if ((tile & HAS_ITEM) != 0) {
+            return this.items.get(cell).toChar();
+        }
+        return TILE_TYPES[tile & TYPE_MASK].toChar();
     }
 
     /**
@@ -97,14 +267,112 @@ public class Map {
      * @return true if the location is valid, false otherwise
      */
     public boolean insideMap(Location location) {
-        if ((location.getCol() < 0) || (location.getCol() >= getMapWidth())
-                || (location.getRow() < 0)
-                || (location.getRow() >= getMapHeight())) {
+        return insideMap(location.getCol(), location.getRow());
+    }
+
+    /**
+     * Used to check if a column and row are a valid location in the map
+     *
+     * @return true if the location is valid, false otherwise
+     */
+    public boolean insideMap(int col, int row) {
+        if ((col < 0) || (col >= getMapWidth())
+                || (row < 0)
+                || (row >= getMapHeight())) {
             return false;
                 }
         return true;
     }
 
+    /**
+     * Returns the ID of the player standing on the tile at the column and row
+     *
+     * @return the player's ID, or NO_OCCUPANT if there is nobody there
+     */
+    public int getOccupant(int col, int row) {
+        final int block[] = this.occupants[occupantBlock(col, row)];
+
+        if (block == null) {
+            return NO_OCCUPANT;
+        }
+        return block[occupantIndex(col, row)] - 1;
+    }
+
+    /**
+     * Records that a player is standing on the tile at the location
+     *
+     * @param playerID
+     *            the ID of the player
+     */
+    public void setOccupant(Location location, int playerID) {
+        final int blockNum = occupantBlock(location.getCol(), location.getRow());
+
+        if (this.occupants[blockNum] == null) {
+            this.occupants[blockNum] = new int[1 << (2 * BLOCK_SHIFT)];
+        }
+        this.occupants[blockNum][occupantIndex(location.getCol(), location.getRow())] = playerID + 1;
+        regionChanged(location.getCol(), location.getRow());
+    }
+
+    /**
+     * Records that a player has left the tile at the location. Nothing
+     * changes if a different player is recorded there.
+     *
+     * @param playerID
+     *            the ID of the player
+     */
+    public void clearOccupant(Location location, int playerID) {
+        final int block[] = this.occupants[occupantBlock(location.getCol(), location.getRow())];
+        final int index = occupantIndex(location.getCol(), location.getRow());
+
+        if ((block != null) && (block[index] == playerID + 1)) {
+            block[index] = NO_OCCUPANT + 1;
+            regionChanged(location.getCol(), location.getRow());
+        }
+    }
+
+    /**
+     * Sums the version counters of every region overlapping the rectangle,
+     * which may stretch off the map. Counters only ever go up, so the sum is
+     * the same as before only if nothing in the rectangle has changed.
+     *
+     * @return the version of the rectangle
+     */
+    public long regionVersion(int minCol, int minRow, int maxCol, int maxRow) {
+        final int lastRegionCol = (Math.min(maxCol, getMapWidth() - 1)) >> REGION_SHIFT;
+        final int lastRegionRow = (Math.min(maxRow, getMapHeight() - 1)) >> REGION_SHIFT;
+        long version = 0;
+
+        for (int regionRow = Math.max(minRow, 0) >> REGION_SHIFT; regionRow <= lastRegionRow; regionRow++) {
+            for (int regionCol = Math.max(minCol, 0) >> REGION_SHIFT; regionCol <= lastRegionCol; regionCol++) {
+                version += this.regionVersions[regionRow * this.regionsAcross + regionCol];
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Bumps the version counter of the region holding the column and row,
+     * so every cached LOOK that can see the region is rendered again
+     */
+    void regionChanged(int col, int row) {
+        this.regionVersions[(row >> REGION_SHIFT) * this.regionsAcross + (col >> REGION_SHIFT)]++;
+    }
+
+    /**
+     * @return the block of the occupancy grid holding the column and row
+     */
+    private int occupantBlock(int col, int row) {
+        return (row >> BLOCK_SHIFT) * this.blocksAcross + (col >> BLOCK_SHIFT);
+    }
+
+    /**
+     * @return the index of the column and row within its occupancy block
+     */
+    private static int occupantIndex(int col, int row) {
+        return ((row & BLOCK_MASK) << BLOCK_SHIFT) | (col & BLOCK_MASK);
+    }
+
     /**
      * @return The name of the map
      */
@@ -116,87 +384,448 @@ public class Map {
      * @return the amount of gold that has not been picked up on the map
      */
     public int remainingGold() {
-        int goldCount = 0;
+        return this.itemCounts[GOLD];
+    }
 
-        for (final Tile[] tileRow : this.map) {
-            for (final Tile tile : tileRow) {
-                if (tile.hasItem()) {
-                    if (tile.getItem().getClass() == Gold.class) {
-                        goldCount++;
-                    }
-                }
-            }
-        }
-        return goldCount;
+    /**
+     * @param item
+     *            the character representing the type of item, as in the map
+     *            file
+     * @return the number of items of that type that have not been picked up
+     */
+    public int remainingItems(char item) {
+        return (item < this.itemCounts.length) ? this.itemCounts[item] : 0;
+    }
+
+    /**
+     * @return the number of items of any type that have not been picked up
+     */
+    public int remainingItems() {
+        return this.items.size();
     }
 
     /**
-     * Reads in a file and returns a List of Strings. This makes life slightly
-     * easier. NB, in Java 1.7 Files.ReadAllLines() will do the job.
+     * Maps the file into memory, so the map can be parsed straight out of the
+     * page cache without first copying it into Strings.
      *
      * @param filename
      *            The name of the file to read the map from
-     * @return A List of lines in the file
+     * @return The contents of the file
+     * @throws ParseException
+     *             if the file is too big to be mapped, over 2GB
      * @throws FileNotFoundException
      */
-    private List<String> readFile(String filename) throws FileNotFoundException {
-        Scanner scanner = null;
-
-        final List<String> lines = new ArrayList<String>();
-        try {
-            // Use a scanner to read all the lines
-            scanner = new Scanner(new FileReader(filename));
-
-            // Store all the lines in the file
-            while (scanner.hasNextLine()) {
-                lines.add(scanner.nextLine());
-            }
-        } finally {
-            if (scanner != null) {
-                scanner.close();
+    private static MappedByteBuffer mapFile(String filename) throws ParseException,
+            FileNotFoundException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ParseException("a map file must be smaller than 2GB", 0);
             }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (final IOException e) {
+            final FileNotFoundException notFound = new FileNotFoundException(
+                    filename + " could not be read");
+            notFound.initCause(e);
+            throw notFound;
         }
+    }
+
+    /**
+     * Reads one of the header lines, i.e. the name or the goal, leaving the
+     * file positioned at the start of the next line
+     *
+     * @param file
+     *            The contents of the map file
+     * @param lineNum
+     *            The line being read, used to create an effective ParseException
+     * @return The line, without its line terminator
+     * @throws ParseException
+     */
+    private String readHeaderLine(MappedByteBuffer file, int lineNum)
+            throws ParseException {
+        if (!file.hasRemaining()) {
+            throw new ParseException(
+                    "a map file must contain at least three lines", lineNum);
+        }
+
+        final int start = file.position();
+        final int end = lineEnd(file, start);
+        final byte line[] = new byte[end - start];
+        file.get(line);
+        skipLineTerminator(file);
 
-        return lines;
+        return new String(line, Charset.defaultCharset());
     }
 
     /**
-     * Reads in the map data from the file, storing the tiles to this.map
+     * Reads in the map data from the file, storing the tiles to this.tiles.
+     * The width comes from the first row, and the rows are counted before
+     * parsing so the tiles can be allocated once.
      *
-     * @param lines
-     *            All the lines of text from the map file
+     * @param file
+     *            The contents of the map file, positioned at the first row
      * @throws ParseException
      * @throws IllegalStateException
      */
-    private void readMap(List<String> lines) throws ParseException,
+    private void readMap(MappedByteBuffer file) throws ParseException,
             IllegalStateException {
                 // Read the rest of the map
-                final int mapWidth = lines.get(MAPBEGINLINE).length();
-                final int mapHeight = lines.size() - MAPBEGINLINE;
-
-                this.map = new Tile[mapHeight][mapWidth];
-
-                for (int row = 0; row < mapHeight; row++) {
-                    final int lineNum = row + MAPBEGINLINE;
-                    final String line = lines.get(lineNum);
-
-                    if (line.length() != mapWidth) {
+                final int mapBegin = file.position();
+                final int mapWidth = lineLength(file, mapBegin);
+                final int mapHeight = countRows(file, mapBegin, mapWidth);
+
+                allocate(mapWidth, mapHeight);
+
+                // Items are collected first so the table can be sized once,
+                // and as items are immutable every cell with the same item
+                // shares one instance
+                final GameItem itemForChar[] = new GameItem[128];
+                int itemCells[] = new int[16];
+                byte itemChars[] = new byte[16];
+                int itemCount = 0;
+
+                // Each row is copied out of the file in one go
+                final byte row[] = new byte[mapWidth];
+
+                int position = mapBegin;
+                for (int rowNum = 0; rowNum < mapHeight; rowNum++) {
+                    final int lineNum = rowNum + MAPBEGINLINE;
+
+                    // The row must fit in the file and be followed by a line
+                    // terminator or the end of the file
+                    final int rowEnd = position + mapWidth;
+                    if ((rowEnd > file.limit()) || ((rowEnd < file.limit())
+                            && (file.get(rowEnd) != '\n') && (file.get(rowEnd) != '\r'))) {
                         throw new ParseException("all lines must be the same length",
                                 lineNum);
                     }
+                    file.get(position, row);
 
-                    for (int col = 0; col < line.length(); col++) {
+                    final int rowStart = rowNum * mapWidth;
+                    for (int col = 0; col < mapWidth; col++) {
                         // Just use the character representation in the input file.
+                        final int character = row[col] & 0xff;
 
-                        try {
-                            this.map[row][col] = Tile.fromChar(line.charAt(col));
-                        } catch (final IllegalArgumentException e) {
+                        if ((character == '\n') || (character == '\r')) {
+                            throw new ParseException("all lines must be the same length",
+                                    lineNum);
+                        }
+                        if (character >= 128) {
                             throw new ParseException("Invalid character (col:" + col
                                     + ")", lineNum);
                         }
+
+                        final int tile = TILE_FOR_CHAR[character];
+                        if (tile >= 0) {
+                            this.tiles[rowStart + col] = (byte) tile;
+                            continue;
+                        }
+
+                        // If we get here, it must be an tile with an item, and
+                        // only a floor tile can have an item
+                        if (itemForChar[character] == null) {
+                            try {
+                                itemForChar[character] = GameItem.fromChar((char) character);
+                            } catch (final IllegalArgumentException e) {
+                                throw new ParseException("Invalid character (col:" + col
+                                        + ")", lineNum);
+                            }
+                        }
+                        if (itemCount == itemCells.length) {
+                            itemCells = Arrays.copyOf(itemCells, itemCount * 2);
+                            itemChars = Arrays.copyOf(itemChars, itemCount * 2);
+                        }
+                        itemCells[itemCount] = rowStart + col;
+                        itemChars[itemCount++] = (byte) character;
+                        this.tiles[rowStart + col] = (byte) TileType.FLOOR.ordinal();
                     }
+
+                    // Move past the row and its line terminator
+                    file.position(rowEnd);
+                    skipLineTerminator(file);
+                    position = file.position();
+                }
+
+                if (file.hasRemaining()) {
+                    throw new ParseException("all lines must be the same length",
+                            mapHeight + MAPBEGINLINE);
                 }
 
+                this.items = new ItemTable(itemCount);
+                for (int i = 0; i < itemCount; i++) {
+                    addItem(itemCells[i], itemForChar[itemChars[i]]);
+                }
+
+    }
+
+    /**
+     * @return the index of the end of the line starting at start, i.e. of its
+     *         line terminator or the end of the file
+     */
+    private static int lineEnd(MappedByteBuffer file, int start) {
+        int end = start;
+        while ((end < file.limit()) && (file.get(end) != '\n')) {
+            end++;
+        }
+        // Lines may end in \r\n
+        if ((end > start) && (file.get(end - 1) == '\r')) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return the length of the line starting at start, without its terminator
+     */
+    private static int lineLength(MappedByteBuffer file, int start) {
+        return lineEnd(file, start) - start;
+    }
+
+    /**
+     * Works out the number of rows from the size of the file, assuming every
+     * row is as long as the first and ends in the same line terminator. Rows
+     * that don't are found while parsing them.
+     *
+     * @return the number of rows from start to the end of the file, a final
+     *         line terminator does not start another row
+     */
+    private static int countRows(MappedByteBuffer file, int start, int width) {
+        int terminatorLength = 0;
+        if (start + width < file.limit()) {
+            terminatorLength = (file.get(start + width) == '\r') ? 2 : 1;
+        }
+
+        final long rowLength = width + terminatorLength;
+        final long rows = (file.limit() - start + rowLength - 1) / rowLength;
+        if (rows * width > Integer.MAX_VALUE) {
+            throw new IllegalStateException("the map is too big");
+        }
+        return (int) rows;
+    }
+
+    /**
+     * Moves the file past the line terminator at its position, if there is one
+     */
+    private static void skipLineTerminator(MappedByteBuffer file) {
+        if (file.hasRemaining() && (file.get(file.position()) == '\r')) {
+            file.get();
+        }
+        if (file.hasRemaining() && (file.get(file.position()) == '\n')) {
+            file.get();
+        }
+    }
+
+    /**
+     * Creates the tiles, occupancy grid and region versions for a map of the
+     * given size. Every tile starts as a floor tile without an item.
+     */
+    private void allocate(int mapWidth, int mapHeight) {
+        this.width = mapWidth;
+        this.height = mapHeight;
+        this.tiles = new byte[mapHeight * mapWidth];
+        this.blocksAcross = (mapWidth + BLOCK_MASK) >> BLOCK_SHIFT;
+        this.occupants = new int[this.blocksAcross * ((mapHeight + BLOCK_MASK) >> BLOCK_SHIFT)][];
+        final int regionSize = 1 << REGION_SHIFT;
+        this.regionsAcross = (mapWidth + regionSize - 1) >> REGION_SHIFT;
+        this.regionVersions = new int[this.regionsAcross * ((mapHeight + regionSize - 1) >> REGION_SHIFT)];
+    }
+
+    /**
+     * Puts an item on a floor tile while loading the map, and counts it
+     */
+    private void addItem(int cell, GameItem item) {
+        this.items.put(cell, item);
+        this.tiles[cell] |= HAS_ITEM;
+        this.itemCounts[item.toChar()]++;
+    }
+
+    /**
+     * Writes the map in the binary map format, see the class comment
+     *
+     * @param filename
+     *            The name of the file to write to
+     * @throws IOException
+     */
+    public void writeBinary(String filename) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(filename)))) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeByte(BINARY_VERSION);
+            out.writeUTF(this.name);
+            out.writeInt(this.goal);
+            out.writeInt(this.width);
+            out.writeInt(this.height);
+            out.writeInt(remainingGold());
+
+            // The tile types, run-length encoded
+            int cell = 0;
+            while (cell < this.tiles.length) {
+                final int type = this.tiles[cell] & TYPE_MASK;
+                int run = 1;
+                while ((cell + run < this.tiles.length)
+                        && ((this.tiles[cell + run] & TYPE_MASK) == type)) {
+                    run++;
+                }
+                out.writeByte(type);
+                writeVarint(out, run);
+                cell += run;
+            }
+
+            // The items, in cell order so the gaps between them stay small
+            final int itemCells[] = new int[this.items.size()];
+            int itemCount = 0;
+            for (int slot = 0; slot < this.items.slots(); slot++) {
+                if (this.items.itemAt(slot) != null) {
+                    itemCells[itemCount++] = this.items.cellAt(slot);
+                }
+            }
+            Arrays.sort(itemCells);
+
+            out.writeInt(itemCount);
+            int previousCell = 0;
+            for (final int itemCell : itemCells) {
+                writeVarint(out, itemCell - previousCell);
+                out.writeByte(this.items.get(itemCell).toChar());
+                previousCell = itemCell;
+            }
+        }
+    }
+
+    /**
+     * Reads in a map in the binary map format, see the class comment
+     *
+     * @param file
+     *            The contents of the map file
+     * @throws ParseException
+     */
+    private void readBinary(ByteBuffer file) throws ParseException {
+        try {
+            file.getInt();
+            if (file.get() != BINARY_VERSION) {
+                throw new ParseException("unsupported binary map version", 0);
+            }
+
+            this.name = readUTF(file);
+            this.goal = file.getInt();
+
+            final int mapWidth = file.getInt();
+            final int mapHeight = file.getInt();
+            if ((mapWidth <= 0) || (mapHeight <= 0)
+                    || ((long) mapWidth * mapHeight > Integer.MAX_VALUE)) {
+                throw new ParseException("invalid binary map size", 0);
+            }
+            final int goldCount = file.getInt();
+            // Before anything is allocated, so a corrupt size is reported
+            // rather than running out of memory
+            checkTileRuns(file.duplicate(), mapWidth * mapHeight);
+            allocate(mapWidth, mapHeight);
+
+            // The tile types, already checked
+            int cell = 0;
+            while (cell < this.tiles.length) {
+                final int type = file.get();
+                final int run = readVarint(file);
+                Arrays.fill(this.tiles, cell, cell + run, (byte) type);
+                cell += run;
+            }
+
+            // The items, which share one instance per type, each taking at
+            // least two bytes and a cell of its own
+            final GameItem itemForChar[] = new GameItem[128];
+            final int itemCount = file.getInt();
+            if ((itemCount < 0) || (itemCount > this.tiles.length)
+                    || (itemCount > file.remaining() / 2)) {
+                throw new ParseException("invalid item count", file.position());
+            }
+            this.items = new ItemTable(itemCount);
+            cell = 0;
+            for (int i = 0; i < itemCount; i++) {
+                cell += readVarint(file);
+                final int character = file.get();
+                if ((cell < 0) || (cell >= this.tiles.length) || (character < 0)
+                        || (this.tiles[cell] != TileType.FLOOR.ordinal())) {
+                    throw new ParseException("invalid item", cell);
+                }
+                if (itemForChar[character] == null) {
+                    itemForChar[character] = GameItem.fromChar((char) character);
+                }
+                addItem(cell, itemForChar[character]);
+            }
+
+            if (remainingGold() != goldCount) {
+                throw new ParseException("gold count does not match the items", 0);
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new ParseException("binary map is truncated", file.position());
+        } catch (final IllegalArgumentException e) {
+            throw new ParseException("invalid item", file.position());
+        }
+    }
+
+    /**
+     * Checks the tile runs of a binary map cover exactly its cells, without
+     * filling any in
+     *
+     * @param file
+     *            the map file, positioned at the first run
+     * @param cells
+     *            the number of cells the map's size gives
+     * @throws ParseException
+     */
+    private static void checkTileRuns(ByteBuffer file, int cells) throws ParseException {
+        int cell = 0;
+        while (cell < cells) {
+            final int type = file.get();
+            final int run = readVarint(file);
+            if ((type < 0) || (type >= TILE_TYPES.length) || (run <= 0)
+                    || (run > cells - cell)) {
+                throw new ParseException("invalid tile run", cell);
+            }
+            cell += run;
+        }
+    }
+
+    /**
+     * Writes a non-negative int using 7 bits per byte, the top bit set on all
+     * but the last byte
+     */
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an int written by writeVarint
+     */
+    private static int readVarint(ByteBuffer in) throws ParseException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ParseException("invalid varint", in.position());
+    }
+
+    /**
+     * Reads a String written by DataOutput.writeUTF, in modified UTF-8
+     */
+    private static String readUTF(ByteBuffer in) throws ParseException {
+        final byte utf[] = new byte[2 + (in.getShort() & 0xffff)];
+        // Read again with its length, which DataInputStream expects first
+        in.position(in.position() - 2).get(utf);
+        try {
+            return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(utf)));
+        } catch (final IOException e) {
+            throw new ParseException("invalid map name", in.position());
+        }
     }
 
     /**
@@ -42,8 +42,15 @@ public class Player implements GameItemConsumer {
 	// How many AP does the player lose per item
 	private static final int apPenaltyPerItem = 1;
 
-	// How far can a player see by default and with a lantern
-	private static final int defaultLookDistance = 2;
+	// How far can a player see by default, without a lantern
+	public static final int DEFAULT_LOOK_DISTANCE = 2;
+
+	// How far the player sees without items, and with the items they have.
+	// Worked out again only when they are given an item, since LOOK and
+	// every view change need it.
+	private final int baseLookDistance;
+	private int lookDistance;
+	private boolean[] fieldOfView;
 
 	/**
 	 * Constructor for players
@@ -56,11 +63,24 @@ public class Player implements GameItemConsumer {
 	 *            a player may be "listened to" for updates.
 	 */
 	public Player(String name, Location location, PlayerListener listener) {
+		this(name, location, listener, DEFAULT_LOOK_DISTANCE);
+	}
+
+	/**
+	 * Constructor for players who can see further, or less far, than usual
+	 * 
+	 * @param lookDistance
+	 *            how far the player can see without any items
+	 */
+	public Player(String name, Location location, PlayerListener listener, int lookDistance) {
 		this.name = name;
 		this.location = location;
 
 		// By default the player starts with nothing
 		this.items = new ArrayList<GameItem>();
+		this.baseLookDistance = lookDistance;
+		this.lookDistance = lookDistance;
+		this.fieldOfView = VisibilityMasks.forDistance(lookDistance);
 
 		this.listener = listener;
 
@@ -185,12 +205,19 @@ public class Player implements GameItemConsumer {
 	}
 
 	/**
-	 * Calculates the distances the player can see
+	 * Returns the distances the player can see
 	 * 
 	 * @return the distance visible to the player
 	 */
 	public int lookDistance() {
-		int lookDistance = defaultLookDistance;
+		return this.lookDistance;
+	}
+
+	/**
+	 * Calculates the distance the player can see with the items they have
+	 */
+	private int calculateLookDistance() {
+		int lookDistance = this.baseLookDistance;
 
 		// Some items, e.g. the lantern, may increase the look distance
 		for (final GameItem item : this.items) {
@@ -209,10 +236,8 @@ public class Player implements GameItemConsumer {
 	 * @return true if the player can see the tile with the specified offset.
 	 */
 	public boolean canSeeTile(int rowOffset, int colOffset) {
-		// This is based on the Manhattan distance
-
-		final boolean canSeeTile = (Math.abs(rowOffset) + Math.abs(colOffset) <= lookDistance() + 1);
-		return canSeeTile;
+		// This is based on the Manhattan distance, looked up in the mask
+		return VisibilityMasks.isVisible(this.fieldOfView, this.lookDistance, rowOffset, colOffset);
 	}
 
 	/**
@@ -251,6 +276,8 @@ public class Player implements GameItemConsumer {
 		// See if the item is retained by the player
 		if (item.isRetainable()) {
 			this.items.add(item);
+			this.lookDistance = calculateLookDistance();
+			this.fieldOfView = VisibilityMasks.forDistance(this.lookDistance);
 		}
 	}
 
@@ -263,10 +290,13 @@ public class Player implements GameItemConsumer {
 	}
 
 	/**
-	 * Handle updating of every client when a player moves
+	 * Handle updating of the client when tiles the player can see change
+	 * 
+	 * @param delta
+	 *            the changed tiles
 	 */
-	public void change() {
-		this.listener.change();
+	public void change(ViewDelta delta) {
+		this.listener.change(delta);
 	}
 
 	/**
@@ -49,5 +49,12 @@ public interface PlayerListener {
 	 */
 	public void treasureChange(int value);
 
-	public void change();
+	/**
+	 * Informs the listener that tiles the player can see have changed, e.g.
+	 * another player has moved within sight
+	 * 
+	 * @param delta
+	 *            the changed tiles, only valid during the call
+	 */
+	public void change(ViewDelta delta);
 }
@@ -3,7 +3,9 @@ package dod.game;
 import dod.game.items.GameItem;
 
 /**
- * An class to represent the tiles on the Map.
+ * An class to represent the tiles on the Map. The map stores its tiles in a
+ * packed form, so a Tile is a view of one cell of the map; changes made
+ * through it, e.g. removing the item, change the map.
  */
 public class Tile {
 
@@ -29,112 +31,99 @@ public class Tile {
 		public char toChar() {
 			return this.character;
 		}
+
+		/**
+		 * Turn a character into a tile type
+		 *
+		 * @param character
+		 *            the character representing the tile
+		 * @return the tile type, or null if the character is not a tile type
+		 *         (it may be an item lying on the floor)
+		 */
+		public static TileType fromChar(char character) {
+			switch (character) {
+				case '.' :
+					return FLOOR;
+
+				case '#' :
+					return WALL;
+
+				case 'E' :
+					return EXIT;
+
+				default :
+					return null;
+			}
+		}
 	}
 
-	// The type of the tile
-	private final TileType type;
+	// The map the tile is part of
+	private final Map map;
 
-	// A tile may contain an item
-	private GameItem item = null;
+	// The location of the tile on the map
+	private final int col;
+	private final int row;
 
 	/**
-	 * Creates a tile without an item
-	 * 
-	 * @param type
-	 *            the type of tile to create
+	 * Creates a view of a cell of the map
+	 *
+	 * @param map
+	 *            the map holding the tile
 	 */
-	public Tile(TileType type) {
-		this.type = type;
-	}
-
-	/**
-	 * Creates a tile with an item
-	 * 
-	 * @param item
-	 *            the item to add to the tile
-	 */
-	public Tile(GameItem item) {
-		// Only a floor tile can have an item
-		this(TileType.FLOOR);
-
-		this.item = item;
+	Tile(Map map, int col, int row) {
+		this.map = map;
+		this.col = col;
+		this.row = row;
 	}
 
 	/**
 	 * Turn the tile into a char
-	 * 
+	 *
 	 * @return the char corresponding to the tile
 	 */
 	public char toChar() {
-		if (!hasItem()) {
-			return this.type.toChar();
-		} else {
-			return this.item.toChar();
-		}
+		return this.map.toChar(this.col, this.row);
 	}
 
 	/**
 	 * Check if the tile can be walked on.
-	 * 
+	 *
 	 * @return true if the tile can be walked on
 	 */
 	public boolean isWalkable() {
-		return this.type.walkable();
+		return this.map.getTileType(this.col, this.row).walkable();
 	}
 
 	/**
 	 * @return true if the square is an exit square
 	 */
 	public boolean isExit() {
-		return (this.type == TileType.EXIT);
+		return (this.map.getTileType(this.col, this.row) == TileType.EXIT);
 	}
 
 	/**
 	 * Check if the tile has the item
-	 * 
+	 *
 	 * @return true if there is an item on the tile
 	 */
 	public boolean hasItem() {
-		return (this.item != null);
+		return (getItem() != null);
 	}
 
 	/**
 	 * Gets the tile on the item, but *does not remove it*. This allows us to
 	 * see if the player already has the item, without removing it.
-	 * 
+	 *
 	 * @return the item on the tile
 	 */
 	public GameItem getItem() {
-		return this.item;
+		return this.map.getItem(this.col, this.row);
 	}
 
 	/**
 	 * Removes the item from the tile, e.g. after a successful pickup.
 	 */
 	public void removeItem() {
-		if (this.item == null) {
-			// There is no item to pick up
-			throw new IllegalStateException("there is no item to pick up");
-		} else {
-			this.item = null;
-		}
-	}
-
-	/**
-	 * Turn a character into a map tile
-	 * 
-	 * @param ch
-	 *            the character representing the map tile
-	 * @return the Tile object corresponding to the character
-	 */
-	public static Tile fromChar(char character) {
-		for (final TileType type : TileType.values()) {
-			if (character == type.toChar()) {
-				return new Tile(type);
-			}
-		}
-
-		// If we get here, it must be an tile with an item
-		return new Tile(GameItem.fromChar(character));
+		this.map.removeItem(this.col, this.row);
 	}
 }
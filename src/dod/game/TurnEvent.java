@@ -0,0 +1,21 @@
+package dod.game;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A player's turn, from STARTTURN until the turn passes on, recorded by Java
+ * Flight Recorder when a recording is running
+ */
+@Name("dod.Turn")
+@Label("Turn")
+@Category({ "Dungeons of Doom", "Game" })
+@Description("A player's turn, from its start until it passes to the next player")
+final class TurnEvent extends Event {
+
+	@Label("Player")
+	int playerID;
+}
@@ -0,0 +1,62 @@
+package dod.game;
+
+/**
+ * The tiles of a player's view that have changed, e.g. because another player
+ * walked into or out of sight. Each tile is given as an offset from the
+ * viewing player, in the same coordinates as a LOOK reply, together with what
+ * the player now sees there.
+ *
+ * The game reuses one instance for every notification, so a listener must not
+ * hold on to it after the call.
+ */
+public final class ViewDelta {
+	// A move changes at most the tile left and the tile entered
+	private static final int MAX_TILES = 2;
+
+	private final int colOffsets[] = new int[MAX_TILES];
+	private final int rowOffsets[] = new int[MAX_TILES];
+	private final char contents[] = new char[MAX_TILES];
+	private int size = 0;
+
+	ViewDelta() {
+	}
+
+	/**
+	 * @return the number of changed tiles
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the column of the tile, relative to the player
+	 */
+	public int getColOffset(int tile) {
+		return this.colOffsets[tile];
+	}
+
+	/**
+	 * @return the row of the tile, relative to the player
+	 */
+	public int getRowOffset(int tile) {
+		return this.rowOffsets[tile];
+	}
+
+	/**
+	 * @return the character now shown for the tile, as in a LOOK reply
+	 */
+	public char getContent(int tile) {
+		return this.contents[tile];
+	}
+
+	void clear() {
+		this.size = 0;
+	}
+
+	void add(int colOffset, int rowOffset, char content) {
+		this.colOffsets[this.size] = colOffset;
+		this.rowOffsets[this.size] = rowOffset;
+		this.contents[this.size] = content;
+		this.size++;
+	}
+}
@@ -0,0 +1,78 @@
+package dod.game;
+
+/**
+ * Precomputed fields of view. For each look distance there is a mask saying
+ * which cells of the (2 * distance + 1) square around a player can be seen,
+ * stored row by row, so a LOOK never has to work out Manhattan distances.
+ * Building a mask costs the square of its distance, but only once, so large
+ * look distances cost no more per LOOK than rendering the reply.
+ */
+final class VisibilityMasks {
+
+	// Indexed by look distance, grown when a longer distance is first needed
+	private static volatile boolean[][] masks = new boolean[0][];
+
+	private VisibilityMasks() {
+	}
+
+	/**
+	 * Returns the mask for the look distance
+	 *
+	 * @param distance
+	 *            how far the player can see
+	 * @return the cells visible to the player, row by row starting from the
+	 *         top left of the square
+	 */
+	static boolean[] forDistance(int distance) {
+		final boolean[][] current = masks;
+		if (distance < current.length) {
+			return current[distance];
+		}
+		return grow(distance);
+	}
+
+	/**
+	 * Whether a player with the look distance can see the tile at the offset
+	 *
+	 * @param mask
+	 *            the mask for the distance, from forDistance
+	 * @return true if the tile is in the player's field of view
+	 */
+	static boolean isVisible(boolean[] mask, int distance, int rowOffset, int colOffset) {
+		final int size = 2 * distance + 1;
+		final int row = rowOffset + distance;
+		final int col = colOffset + distance;
+		if ((row < 0) || (row >= size) || (col < 0) || (col >= size)) {
+			// Outside the square only the tiles straight out at one more than
+			// the distance are close enough
+			return Math.abs(rowOffset) + Math.abs(colOffset) <= distance + 1;
+		}
+		return mask[row * size + col];
+	}
+
+	private static synchronized boolean[] grow(int distance) {
+		if (distance >= masks.length) {
+			final boolean[][] grown = new boolean[distance + 1][];
+			for (int d = 0; d < grown.length; d++) {
+				grown[d] = (d < masks.length) ? masks[d] : createMask(d);
+			}
+			masks = grown;
+		}
+		return masks[distance];
+	}
+
+	private static boolean[] createMask(int distance) {
+		final int size = 2 * distance + 1;
+		final boolean[] mask = new boolean[size * size];
+
+		int cell = 0;
+		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
+			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
+				// This is based on the Manhattan distance, as in Player.canSeeTile
+				mask[cell++] = (Math.abs(rowOffset) + Math.abs(colOffset) <= distance + 1);
+			}
+		}
+
+		return mask;
+	}
+}